@@ -1,6 +1,10 @@
 // Hand-written S4 compiler
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.*;
 //======================================================
 class S4
 {  
@@ -10,15 +14,51 @@ class S4
       System.out.println("S4 compiler written by Brandon Walsh");
 
       boolean debug = false;
+      boolean syntaxOnly = false;
+      boolean stats = false;
+      boolean parallel = false;
+      boolean stream = false;
+      boolean evaluate = false;
+      int unrollFactor = 4;
+      int optimize = 2;
+      ArrayList<String> disabled = new ArrayList<String>();
       if (args.length >= 1)
         for (int i = 0; i < args.length - 1; i++)
-          if (args[0].equalsIgnoreCase("-debug_token_manager"))  
+          if (args[i].equalsIgnoreCase("-debug_token_manager"))  
             debug = true;
           else
-          {
-            System.err.println("Bad command line arg");
-            System.exit(1);
-          }
+            if (args[i].equalsIgnoreCase("-syntax-only"))
+              syntaxOnly = true;
+            else
+              if (args[i].equalsIgnoreCase("-time-passes") ||
+                  args[i].equalsIgnoreCase("-stats"))
+                stats = true;
+              else
+                if (args[i].equalsIgnoreCase("-parallel"))
+                  parallel = true;
+                else
+                  if (args[i].equalsIgnoreCase("-stream"))
+                    stream = true;
+                  else
+                    if (args[i].regionMatches(true, 0, 
+                          "-disable=", 0, 9))
+                      disabled.add(args[i].substring(9));
+                    else
+                      if (args[i].matches("(?i)-unroll=[0-9]+"))
+                        unrollFactor = 
+                          Integer.parseInt(args[i].substring(8));
+                      else
+                        if (args[i].matches("(?i)-O[012]"))
+                          optimize = args[i].charAt(2) - '0';
+                        else
+                          if (args[i].equalsIgnoreCase("-peval"))
+                            evaluate = true;
+                          else
+                          {
+                            System.err.println(
+                                "Bad command line arg");
+                            System.exit(1);
+                          }
       else
       {
         System.err.println("No input file specified");
@@ -29,35 +69,175 @@ class S4
       String inFileName = args[args.length - 1] + ".s";
       String outFileName = args[args.length - 1] + ".a";
 
+      if (syntaxOnly)
+      {
+        System.exit(checkSyntax(inFileName) ? 0 : 1);
+      }
+      if (stream && parallel)
+      {
+        System.err.println(
+            "-stream and -parallel cannot be combined");
+        System.exit(1);
+      }
+
       // construct file objects
-      Scanner inFile = new Scanner(new File(inFileName));
-      PrintWriter outFile = new PrintWriter(outFileName);
+      BufferedReader inFile = 
+        new BufferedReader(new FileReader(inFileName));
+      S4AsmWriter outFile = new S4AsmWriter(outFileName);
 
       // identify compiler/author in the output file
       outFile.println("; from S4 compiler written by Brandon Walsh");
 
       // construct objects that make up compiler
       S4SymTab st = new S4SymTab();
-      S4TokenMgr tm =  new S4TokenMgr(
-          inFile, outFile, debug);
       S4CodeGen cg = new S4CodeGen(outFile, st);
-      S4Parser parser = new S4Parser(st, tm, cg);
+      S4Listing listing = 
+        stream ? new S4Listing(cg) : new S4Listing();
+      S4TokenMgr tm =  new S4TokenMgr(
+          inFile, listing, debug);
+      S4Program program = new S4Program(st, cg, listing);
+      program.parallel = parallel;
+
+      // register the passes
+      S4Pipeline pipeline = new S4Pipeline();
+      S4EvaluatePass peval = new S4EvaluatePass();
+      S4ConstantPass sccp = new S4ConstantPass();
+      S4SimplifyPass simplify = new S4SimplifyPass();
+      S4BranchPass dce = new S4BranchPass();
+      S4UnrollPass unroll = new S4UnrollPass();
+      unroll.setFactor(unrollFactor);
+      S4InvertPass invert = new S4InvertPass();
+      S4InvariantPass licm = new S4InvariantPass();
+      S4CsePass cse = new S4CsePass();
+      S4DeadStorePass dse = new S4DeadStorePass();
+      S4JumpPass jumps = new S4JumpPass();
+      S4ForwardPass forward = new S4ForwardPass();
+      S4StorePass stores = new S4StorePass();
+      S4PeepholePass peephole = new S4PeepholePass();
+      if (stream)
+        pipeline.add(new S4StreamPass(tm), 0);
+      else
+      {
+        pipeline.add(new S4ParsePass(tm), 0);
+        // peval replaces a program that reads no input
+        // by one print of its output, so it is a mode of
+        // its own: it runs only with -peval (at -O2 and
+        // above)
+        pipeline.add(peval, 2);
+        pipeline.add(sccp, 2);
+        pipeline.add(simplify, 1);
+        pipeline.add(dce, 1);
+        pipeline.add(unroll, 2);
+        pipeline.add(invert, 1);
+        pipeline.add(licm, 2);
+        pipeline.add(cse, 2);
+        pipeline.add(dse, 2);
+        pipeline.add(new S4SymbolPass(), 0);
+        pipeline.add(new S4EmitPass(), 0);
+        pipeline.add(jumps, 1);
+        pipeline.add(forward, 2);
+        pipeline.add(stores, 2);
+        pipeline.add(peephole, 1);
+      }
+      // -O0 runs no optional pass and does not fold; -O1
+      // adds the cheap, local ones; -O2 (the default)
+      // runs them all.  So with no options the code is
+      // not the original S4's, though it does the same;
+      // -O0 comes closest
+      pipeline.setLevel(optimize);
+      if (!evaluate)
+        pipeline.disable("peval");
+      pipeline.setMeasure(stats);
+      if (optimize == 0)
+        program.fold = false;
+
+      // -disable= takes an optional pass, a peephole
+      // rule, or fold (the parser's constant folding)
+      for (String name : disabled)
+        if (name.equalsIgnoreCase("fold"))
+          program.fold = false;
+        else
+          if (!pipeline.disable(name) && 
+              !peephole.disableRule(name))
+          {
+            System.err.println(
+                "No optional pass or rule " + name);
+            System.exit(1);
+          }
 
       // parse and translate
       try
       {
-        parser.parse();
+        pipeline.run(program);
       }      
       catch (RuntimeException e) 
       {
+        cg.flush();
         System.err.println(e.getMessage());
         outFile.println(e.getMessage());
         outFile.close();
         System.exit(1);
       }
 
+      // write out any code not yet written (as with
+      // -stream after an error), then report every
+      // syntax error found
+      cg.flush();
+      for (S4ParseException e : program.diagnostics)
+      {
+        System.err.println(e.getMessage());
+        outFile.println(e.getMessage());
+      }
+
       outFile.close();
+      if (stats)
+        pipeline.report(System.out);
+      if (program.diagnostics.size() > 0)
+        System.exit(1);
+    }
+  //-----------------------------------------
+  // -syntax-only: parse without generating code.  The
+  // token manager keeps no listing, and no output file
+  // is written.  Returns true if the source is
+  // syntactically correct.
+  //
+  private static boolean checkSyntax(String inFileName)
+    throws IOException
+  {
+    BufferedReader inFile = 
+      new BufferedReader(new FileReader(inFileName));
+    S4TokenMgr tm = new S4TokenMgr(inFile, null, false);
+    S4Parser parser = new S4Parser(tm);
+    parser.setBuildTree(false);
+
+    try
+    {
+      parser.parse();
+    }
+    catch (RuntimeException e)
+    {
+      System.err.println(e.getMessage());
+      System.out.println(inFileName + ": FAIL");
+      return false;
+    }
+    finally
+    {
+      inFile.close();
+    }
+
+    ArrayList<S4ParseException> diagnostics =
+      parser.getDiagnostics();
+    for (S4ParseException e : diagnostics)
+      System.err.println(e.getMessage());
+    if (diagnostics.size() > 0)
+    {
+      System.out.println(inFileName + ": FAIL (" +
+          diagnostics.size() + " errors)");
+      return false;
     }
+    System.out.println(inFileName + ": OK");
+    return true;
+  }
 }                                           // end of S4
 //======================================================
 interface S4Constants
@@ -117,18 +297,26 @@ interface S4Constants
 class S4SymTab
 {
   private ArrayList<String> symbol;
+  private HashMap<String, Integer> index;
   //-----------------------------------------
   public S4SymTab()
   {
     symbol = new ArrayList<String>();
+    index = new HashMap<String, Integer>();
   }                                    
   //-----------------------------------------
-  public void enter(String s)
+  // Enter s if it is not already in the table, and
+  // return its index.
+  //
+  public int enter(String s)
   {
     // if s is not in symbol, then add it
-    int index = symbol.indexOf(s);
-    if (index < 0)
-      symbol.add(s);
+    Integer i = index.get(s);
+    if (i != null)
+      return i;
+    symbol.add(s);
+    index.put(s, symbol.size() - 1);
+    return symbol.size() - 1;
   }
   //-----------------------------------------
   public String getSymbol(int index)
@@ -144,8 +332,8 @@ class S4SymTab
 //======================================================
 class S4TokenMgr implements S4Constants
 {
-  private Scanner inFile;          
-  private PrintWriter outFile;
+  private BufferedReader inFile;          
+  private S4Listing listing;
   private boolean debug;
   private char currentChar;
   private int currentColumnNumber;
@@ -155,11 +343,11 @@ class S4TokenMgr implements S4Constants
   private StringBuffer buffer;  // token image built here
   private boolean inString;
   //-----------------------------------------
-  public S4TokenMgr(Scanner inFile, 
-      PrintWriter outFile, boolean debug)
+  public S4TokenMgr(BufferedReader inFile, 
+      S4Listing listing, boolean debug)
   {
     this.inFile = inFile;
-    this.outFile = outFile;
+    this.listing = listing;
     this.debug = debug;
     currentChar = '\n';        //  '\n' triggers read
     currentLineNumber = 0;
@@ -341,11 +529,11 @@ class S4TokenMgr implements S4Constants
           }
 
     // token trace appears as comments in output file
-    if (debug)
-      outFile.printf(
-          "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s%n",
+    if (debug && listing != null)
+      listing.add(currentLineNumber, String.format(
+          "kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s",
           token.kind, token.beginLine, token.beginColumn, 
-          token.endLine, token.endColumn, token.image);
+          token.endLine, token.endColumn, token.image));
 
     return token;
   }     
@@ -357,11 +545,19 @@ class S4TokenMgr implements S4Constants
 
     if (currentChar == '\n')
     {
-      if (inFile.hasNextLine())     // any lines left?
+      try
+      {
+        inputLine = inFile.readLine();  // get next line
+      }
+      catch (IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+      if (inputLine != null)        // any lines left?
       {
-        inputLine = inFile.nextLine();  // get next line
-        // output source line as comment
-        outFile.println("; " + inputLine);
+        // source line goes in the listing
+        if (listing != null)
+          listing.add(currentLineNumber + 1, inputLine);
         inputLine = inputLine + "\n";   // mark line end
         currentLineNumber++;
         currentColumnNumber = 0;
@@ -384,36 +580,556 @@ class S4TokenMgr implements S4Constants
   }
 }                             // end of S4TokenMgr class
 //======================================================
+// S4Grammar turns a small grammar spec into the tables
+// that drive S4Parser's LL(1) parse loop.  Each line of
+// the spec is either a production
+//
+//    A -> X Y Z
+//
+// or the error message to use when A cannot be expanded
+//
+//    A ! Expecting something
+//
+// A right side may contain terminals, written as they
+// appear in tokenImage but with single quotes ('while',
+// '(') or angle brackets (<ID>), nonterminals, and
+// action symbols (#name), which are semantic hooks that
+// the parse loop runs when it pops them.  An empty right
+// side is an epsilon production.  A right side that
+// starts with ? is predicted only when the token after
+// the current one matches its second symbol; that is how
+// the one LL(2) decision in S4 (cascaded assignment) is
+// written.  If two productions land in the same table
+// cell, the one listed first wins (this resolves the
+// dangling else in favor of the nearest if).
+//
+// Symbols are ints: terminals are their token kinds,
+// nonterminals follow the terminals, and action k is
+// encoded as -(k + 1).
+//
+class S4Grammar
+{
+  private String[] tokenImage;
+  private String[] actionName;
+  private int terminalCount;
+  private ArrayList<String> nonterminal;
+  private ArrayList<String> message;
+  private ArrayList<Integer> lhs;
+  private ArrayList<int[]> rhs;
+  private ArrayList<Integer> guard;
+  private boolean[] nullable;
+  private BitSet[] first;
+  private BitSet[] follow;
+  private int[][] predict;        // [nonterminal][kind]
+  private int[][] alternative;    // used if guard fails
+  //-----------------------------------------
+  public S4Grammar(String[] spec, String[] tokenImage,
+      String[] actionName)
+  {
+    this.tokenImage = tokenImage;
+    this.actionName = actionName;
+    terminalCount = tokenImage.length;
+    nonterminal = new ArrayList<String>();
+    message = new ArrayList<String>();
+    lhs = new ArrayList<Integer>();
+    rhs = new ArrayList<int[]>();
+    guard = new ArrayList<Integer>();
+
+    for (int i = 0; i < spec.length; i++)
+      readLine(spec[i]);
+    computeFirst();
+    computeFollow();
+    buildTable();
+  }
+  //-----------------------------------------
+  private void readLine(String line)
+  {
+    String[] word = line.trim().split("\\s+");
+    if (word.length < 2 || 
+        !(word[1].equals("->") || word[1].equals("!")))
+      throw new IllegalArgumentException(
+          "Bad grammar line: " + line);
+
+    int a = nonterminalNumber(word[0]);
+    if (word[1].equals("!"))
+    {
+      message.set(a - terminalCount,
+          line.substring(line.indexOf('!') + 1).trim());
+      return;
+    }
+
+    int start = 2;
+    int g = -1;
+    if (word.length > 2 && word[2].equals("?"))
+      start = 3;
+    int[] r = new int[word.length - start];
+    for (int i = start; i < word.length; i++)
+      r[i - start] = symbolNumber(word[i]);
+    if (start == 3)
+    {
+      if (r.length < 2 || !isTerminal(r[0]))
+        throw new IllegalArgumentException(
+            "Bad guarded production: " + line);
+      // the guard is the first terminal after r[0]
+      for (int i = 1; i < r.length && g < 0; i++)
+        if (isTerminal(r[i]))
+          g = r[i];
+    }
+    lhs.add(a);
+    rhs.add(r);
+    guard.add(g);
+  }
+  //-----------------------------------------
+  private int nonterminalNumber(String name)
+  {
+    int index = nonterminal.indexOf(name);
+    if (index < 0)
+    {
+      nonterminal.add(name);
+      message.add(null);
+      index = nonterminal.size() - 1;
+    }
+    return terminalCount + index;
+  }
+  //-----------------------------------------
+  private int symbolNumber(String word)
+  {
+    if (word.startsWith("#"))
+    {
+      for (int i = 0; i < actionName.length; i++)
+        if (actionName[i].equals(word.substring(1)))
+          return -(i + 1);
+      throw new IllegalArgumentException(
+          "Unknown action " + word);
+    }
+
+    String image = null;
+    if (word.startsWith("'") && word.endsWith("'"))
+      image = "\"" + word.substring(1, word.length() - 1)
+        + "\"";
+    else
+      if (word.startsWith("<"))
+        image = word;
+    if (image == null)
+      return nonterminalNumber(word);
+
+    for (int i = 0; i < terminalCount; i++)
+      if (tokenImage[i].equals(image))
+        return i;
+    throw new IllegalArgumentException(
+        "Unknown terminal " + word);
+  }
+  //-----------------------------------------
+  // FIRST sets by fixed-point iteration.  Action
+  // symbols derive the empty string, so they are
+  // transparent here.
+  //
+  private void computeFirst()
+  {
+    int n = nonterminal.size();
+    nullable = new boolean[n];
+    first = new BitSet[n];
+    for (int i = 0; i < n; i++)
+      first[i] = new BitSet(terminalCount);
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      for (int p = 0; p < rhs.size(); p++)
+      {
+        int a = lhs.get(p) - terminalCount;
+        BitSet f = new BitSet(terminalCount);
+        boolean n0 = firstOf(rhs.get(p), 0, f);
+        int before = first[a].cardinality();
+        first[a].or(f);
+        if (first[a].cardinality() != before ||
+            (n0 && !nullable[a]))
+        {
+          nullable[a] |= n0;
+          changed = true;
+        }
+      }
+    }
+  }
+  //-----------------------------------------
+  // Add FIRST(r[from..]) to f.  Return true if
+  // r[from..] can derive the empty string.
+  //
+  private boolean firstOf(int[] r, int from, BitSet f)
+  {
+    for (int i = from; i < r.length; i++)
+    {
+      int s = r[i];
+      if (s < 0)
+        continue;
+      if (isTerminal(s))
+      {
+        f.set(s);
+        return false;
+      }
+      f.or(first[s - terminalCount]);
+      if (!nullable[s - terminalCount])
+        return false;
+    }
+    return true;
+  }
+  //-----------------------------------------
+  private void computeFollow()
+  {
+    int n = nonterminal.size();
+    follow = new BitSet[n];
+    for (int i = 0; i < n; i++)
+      follow[i] = new BitSet(terminalCount);
+
+    boolean changed = true;
+    while (changed)
+    {
+      changed = false;
+      for (int p = 0; p < rhs.size(); p++)
+      {
+        int[] r = rhs.get(p);
+        int a = lhs.get(p) - terminalCount;
+        for (int i = 0; i < r.length; i++)
+        {
+          if (r[i] < 0 || isTerminal(r[i]))
+            continue;
+          BitSet f = new BitSet(terminalCount);
+          if (firstOf(r, i + 1, f))
+            f.or(follow[a]);
+          BitSet b = follow[r[i] - terminalCount];
+          int before = b.cardinality();
+          b.or(f);
+          if (b.cardinality() != before)
+            changed = true;
+        }
+      }
+    }
+  }
+  //-----------------------------------------
+  private void buildTable()
+  {
+    int n = nonterminal.size();
+    predict = new int[n][terminalCount];
+    alternative = new int[n][terminalCount];
+    for (int i = 0; i < n; i++)
+    {
+      Arrays.fill(predict[i], -1);
+      Arrays.fill(alternative[i], -1);
+    }
+
+    for (int p = 0; p < rhs.size(); p++)
+    {
+      int a = lhs.get(p) - terminalCount;
+      BitSet f = new BitSet(terminalCount);
+      if (firstOf(rhs.get(p), 0, f))
+        f.or(follow[a]);
+      for (int k = f.nextSetBit(0); k >= 0; 
+          k = f.nextSetBit(k + 1))
+        if (predict[a][k] < 0)
+          predict[a][k] = p;
+        else
+          if (guard.get(predict[a][k]) >= 0 &&
+              alternative[a][k] < 0)
+            alternative[a][k] = p;
+    }
+  }
+  //-----------------------------------------
+  public boolean isTerminal(int symbol)
+  {
+    return symbol >= 0 && symbol < terminalCount;
+  }
+  //-----------------------------------------
+  public int getSymbol(String name)
+  {
+    int index = nonterminal.indexOf(name);
+    if (index < 0)
+      throw new IllegalArgumentException(
+          "Unknown nonterminal " + name);
+    return terminalCount + index;
+  }
+  //-----------------------------------------
+  // The start symbol is the left side of the first
+  // production.
+  //
+  public int getStart()
+  {
+    return lhs.get(0);
+  }
+  //-----------------------------------------
+  public int getPrediction(int symbol, int kind)
+  {
+    return predict[symbol - terminalCount][kind];
+  }
+  //-----------------------------------------
+  public int getAlternative(int symbol, int kind)
+  {
+    return alternative[symbol - terminalCount][kind];
+  }
+  //-----------------------------------------
+  public int getGuard(int production)
+  {
+    return guard.get(production);
+  }
+  //-----------------------------------------
+  public int[] getRhs(int production)
+  {
+    return rhs.get(production);
+  }
+  //-----------------------------------------
+  public BitSet getFirst(int symbol)
+  {
+    return first[symbol - terminalCount];
+  }
+  //-----------------------------------------
+  public BitSet getFollow(int symbol)
+  {
+    return follow[symbol - terminalCount];
+  }
+  //-----------------------------------------
+  // Message used when symbol cannot be expanded on
+  // the current token.  If the spec gives none, list
+  // the tokens that could have started it.
+  //
+  public String getMessage(int symbol)
+  {
+    String m = message.get(symbol - terminalCount);
+    if (m != null)
+      return m;
+
+    StringBuffer b = new StringBuffer("Expecting ");
+    BitSet f = getFirst(symbol);
+    for (int k = f.nextSetBit(0); k >= 0; 
+        k = f.nextSetBit(k + 1))
+    {
+      if (b.length() > 10)
+        b.append(", ");
+      b.append(tokenImage[k]);
+    }
+    return b.toString();
+  }
+}                              // end of S4Grammar class
+//======================================================
+// A syntax error found by S4Parser.  Parsing recovers
+// and continues after an error, so these are created
+// often: no stack trace is captured, and the message
+// text is only built if someone asks for it.
+//
+class S4ParseException extends RuntimeException
+{
+  private static final long serialVersionUID = 1L;
+  private String image;
+  private int line;
+  private int column;
+  private String expected;
+  //-----------------------------------------
+  public S4ParseException(Token t, String expected)
+  {
+    super(null, null, false, false);
+    image = t.image;
+    line = t.beginLine;
+    column = t.beginColumn;
+    this.expected = expected;
+  }
+  //-----------------------------------------
+  public String getMessage()
+  {
+    return "Encountered \"" + image + "\" on line " + 
+      line + " column " + column +
+      System.getProperty("line.separator") + expected;
+  }
+}                       // end of S4ParseException class
+//======================================================
 class S4Parser implements S4Constants
 {
-  private S4SymTab st;
   private S4TokenMgr tm;
-  private S4CodeGen cg;
   private Token currentToken;
-  private Token previousToken; 
+  private Token previousToken;
+  private int[] stack;               // parse stack
+  private int sp;
+  private ArrayList<S4ParseException> diagnostics;
+  private int errorLine;     // position of last error
+  private int errorColumn;
+
+  // Semantic stacks used by the actions to build the
+  // tree: the statement lists under construction
+  // (innermost last), parsed expressions, assignment
+  // targets, and the first line of each statement
+  // being parsed.
+  private ArrayList<ArrayList<S4Node>> lists;
+  private ArrayList<S4Expr> exprs;
+  private ArrayList<String> targets;
+  private int[] lines;
+  private int lp;
+  private S4Print print;     // print statement being built
+  private ArrayList<S4Node> program;
+  private boolean buildTree;
+
+  // When streaming (see setStreamTo), the actions emit
+  // code instead of building the tree.  The only state
+  // kept is the labels of the enclosing statements,
+  // innermost last.
+  private S4CodeGen streamTo;
+  private S4SymTab st;
+  private int[] labels;
+  private int lbp;
+  private ArrayList<S4Const> pending;
+  private boolean fold;
+
+  // The S4 grammar.  S4Grammar computes FIRST and FOLLOW
+  // sets and the LL(1) table from it.  expr is parsed by
+  // precedence climbing (see expr(int)); its productions
+  // here only define FIRST(expr) and FOLLOW(expr).
+  private static final String[] spec =
+  {
+    "program        -> #begin statementList <EOF> #end",
+    "statementList  -> statement statementList",
+    "statementList  ->",
+    "statement      -> <ID> #target '=' assignmentTail #assign",
+    "statement      -> 'println' '(' printlnArg #newline" +
+      " ')' ';' #println",
+    "statement      -> 'print' '(' printArg ')' ';' #print",
+    "statement      -> ';' #null",
+    "statement      -> '{' #begin statementList '}' #block",
+    "statement      -> 'readint' '(' <ID> #target #readint" +
+      " ')' ';'",
+    "statement      -> 'while' #whileTop '(' expr ')'" +
+      " #whileTest statement #while",
+    "statement      -> 'do' #doTop statement 'while' '('" +
+      " expr #doTest ')' ';' #do",
+    "statement      -> 'if' '(' expr ')' #ifTest statement" +
+      " elsePart",
+    "elsePart       -> 'else' #elseBegin statement #ifElse",
+    "elsePart       -> #if",
+    "assignmentTail -> ? <ID> #target '=' assignmentTail" +
+      " #cascade",
+    "assignmentTail -> expr ';'",
+    "printlnArg     -> printArg",
+    "printlnArg     -> #noArg",
+    "printArg       -> <STRING> #string",
+    "printArg       -> expr #dout",
+    "expr           -> factor",
+    "factor         -> <UNSIGNED>",
+    "factor         -> <ID>",
+    "factor         -> '(' expr ')'",
+    "factor         -> '+' factor",
+    "factor         -> '-' factor",
+    "statementList  ! Expecting statement, \"}\", or <EOF>",
+    "statement      ! Expecting statement",
+    "assignmentTail ! Expecting factor",
+    "printlnArg     ! Expecting factor",
+    "printArg       ! Expecting factor",
+    "factor         ! Expecting factor"
+  };
+
+  // action symbols, in the order used by action(int)
+  private static final String[] actionName =
+  {
+    "begin", "end", "target", "assign", "println", "print",
+    "null", "block", "readint", "while", "do", "ifElse",
+    "if", "noArg", "string", "whileTop", "whileTest",
+    "doTop", "doTest", "ifTest", "elseBegin", "cascade",
+    "dout", "newline"
+  };
+  private static final int ACT_BEGIN = 0;
+  private static final int ACT_END = 1;
+  private static final int ACT_TARGET = 2;
+  private static final int ACT_ASSIGN = 3;
+  private static final int ACT_PRINTLN = 4;
+  private static final int ACT_PRINT = 5;
+  private static final int ACT_NULL = 6;
+  private static final int ACT_BLOCK = 7;
+  private static final int ACT_READINT = 8;
+  private static final int ACT_WHILE = 9;
+  private static final int ACT_DO = 10;
+  private static final int ACT_IF_ELSE = 11;
+  private static final int ACT_IF = 12;
+  private static final int ACT_NO_ARG = 13;
+  private static final int ACT_STRING = 14;
+  private static final int ACT_WHILE_TOP = 15;
+  private static final int ACT_WHILE_TEST = 16;
+  private static final int ACT_DO_TOP = 17;
+  private static final int ACT_DO_TEST = 18;
+  private static final int ACT_IF_TEST = 19;
+  private static final int ACT_ELSE_BEGIN = 20;
+  private static final int ACT_CASCADE = 21;
+  private static final int ACT_DOUT = 22;
+  private static final int ACT_NEWLINE = 23;
+
+  private static final S4Grammar grammar =
+    new S4Grammar(spec, tokenImage, actionName);
+  private static final int EXPR = grammar.getSymbol("expr");
+  private static final int STATEMENT =
+    grammar.getSymbol("statement");
+  private static final int STATEMENT_LIST =
+    grammar.getSymbol("statementList");
+  private static final BitSet exprFollow =
+    grammar.getFollow(EXPR);
+  private static final BitSet statementFirst =
+    grammar.getFirst(STATEMENT);
+
+  // Binary operator table used by expr(int).  For each
+  // token kind, binaryPrec gives the precedence of the
+  // operator (0 if the kind is not a binary operator),
+  // and binaryInstruction gives the instruction that
+  // implements it.  Higher precedence binds tighter.
+  private static final int[] binaryPrec =
+    new int[tokenImage.length];
+  private static final S4Op[] binaryInstruction =
+    new S4Op[tokenImage.length];
+  static
+  {
+    binaryOperator(PLUS, 1, S4Op.ADD);
+    binaryOperator(MINUS, 1, S4Op.SUB);
+    binaryOperator(TIMES, 2, S4Op.MULT);
+    binaryOperator(DIVIDE, 2, S4Op.DIV);
+  }
   //-----------------------------
-  public S4Parser(S4SymTab st,S4TokenMgr tm,S4CodeGen cg)
+  private static void binaryOperator(int kind, int prec,
+      S4Op instruction)
+  {
+    binaryPrec[kind] = prec;
+    binaryInstruction[kind] = instruction;
+  }
+  //-----------------------------
+  public S4Parser(S4TokenMgr tm)
+  {
+    this(tm, tm.getNextToken());
+  }
+  //-----------------------------
+  // Parse a token list that has already been built
+  // (see S4ParsePass).  The list must end with an EOF
+  // token whose next field refers to itself, so the
+  // parser never needs a token manager.
+  //
+  public S4Parser(Token first)
+  {
+    this(null, first);
+  }
+  //-----------------------------
+  private S4Parser(S4TokenMgr tm, Token first)
   {
-    this.st = st;
     this.tm = tm;
-    this.cg = cg;   
     // prime currentToken with first token
-    currentToken = tm.getNextToken(); 
+    currentToken = first; 
     previousToken = null;
+    diagnostics = new ArrayList<S4ParseException>();
+    lists = new ArrayList<ArrayList<S4Node>>();
+    exprs = new ArrayList<S4Expr>();
+    targets = new ArrayList<String>();
+    lines = new int[64];
+    buildTree = true;
+    errorLine = -1;
+    fold = true;
   }
   //-----------------------------------------
   // Construct and return an exception that contains
   // a message consisting of the image of the current
   // token, its location, and the expected tokens.
   //
-  private RuntimeException genEx(String errorMessage)
+  private S4ParseException genEx(String errorMessage)
   {
-    return new RuntimeException("Encountered \"" + 
-        currentToken.image + "\" on line " + 
-        currentToken.beginLine + " column " + 
-        currentToken.beginColumn +
-        System.getProperty("line.separator") + 
-        errorMessage);
+    return new S4ParseException(currentToken, errorMessage);
   }
   //-----------------------------------------
   // Advance currentToken to next token.
@@ -470,356 +1186,433 @@ class S4Parser implements S4Constants
       throw genEx("Expecting " + tokenImage[expected]);
   }
   //-----------------------------------------
-  public void parse()
+  // Table-driven LL(1) parse.  The parse stack holds
+  // grammar symbols; popping a terminal consumes it,
+  // popping a nonterminal pushes the right side of the
+  // production the table predicts for the current
+  // token, and popping an action symbol runs the
+  // corresponding semantic action, which builds the
+  // program tree.  Expressions are handed to the
+  // precedence-climbing expr().  Returns the top-level
+  // statement list.
+  //
+  // A syntax error does not end the parse: it is added
+  // to the diagnostics list and recover() resumes at
+  // the next statement boundary, so one run reports
+  // every error in the file.  Once there is an error,
+  // the actions stop building the tree (or emitting
+  // code) and parse() returns null.
+  //
+  public ArrayList<S4Node> parse()
+  {
+    stack = new int[64];
+    sp = 0;
+    push(grammar.getStart());
+
+    while (sp > 0)
+    {
+      int symbol = stack[--sp];
+
+      try
+      {
+        if (symbol < 0)
+          action(-symbol - 1);
+        else
+          if (grammar.isTerminal(symbol))
+            consume(symbol);
+          else
+            if (symbol == EXPR)
+            {
+              S4Expr e = expr();
+              if (building())
+                exprs.add(e);
+              if (streamTo != null)
+                flushPending();
+            }
+            else
+            {
+              int kind = currentToken.kind;
+              int p = grammar.getPrediction(symbol, kind);
+              if (p < 0)
+                throw genEx(grammar.getMessage(symbol));
+              int g = grammar.getGuard(p);
+              if (g >= 0 && getToken(2).kind != g)
+                p = grammar.getAlternative(symbol, kind);
+              if (symbol == STATEMENT && building())
+                pushLine(currentToken.beginLine);
+
+              int[] rhs = grammar.getRhs(p);
+              for (int i = rhs.length - 1; i >= 0; i--)
+                push(rhs[i]);
+            }
+      }
+      catch (S4ParseException e)
+      {
+        sp++;              // symbol is still pending
+        recover(e);
+      }
+    }
+
+    if (!building())
+      return null;
+    return program;
+  }
+  //-----------------------------------------
+  private void push(int symbol)
   {
-    program();
+    if (sp == stack.length)
+      stack = Arrays.copyOf(stack, 2 * sp);
+    stack[sp++] = symbol;
   }
   //-----------------------------------------
-  private void program()
+  private void pushLine(int line)
   {
-    statementList();
-    cg.endCode();
-    if (currentToken.kind != EOF)
-      throw genEx("Expecting <EOF>");
+    if (lp == lines.length)
+      lines = Arrays.copyOf(lines, 2 * lp);
+    lines[lp++] = line;
   }
   //-----------------------------------------
-  private void statementList()
+  // Panic-mode recovery.  Pop the parse stack back to
+  // the innermost pending statementList, then skip
+  // tokens up to a statement boundary: a ";" (which is
+  // consumed as the end of the bad statement), a token
+  // that can start a statement, "}", or <EOF>.  If
+  // there is no statementList left (junk after the
+  // last statement), the bad token is skipped and a
+  // fresh statementList is pushed.
+  //
+  private void recover(S4ParseException e)
   {
-    switch(currentToken.kind)
+    // a second error on the same token gets no new
+    // diagnostic, but forces progress
+    boolean stuck = currentToken.beginLine == errorLine &&
+      currentToken.beginColumn == errorColumn;
+    if (!stuck)
+      diagnostics.add(e);
+    errorLine = currentToken.beginLine;
+    errorColumn = currentToken.beginColumn;
+    if (pending != null)
+      pending.clear();
+
+    while (sp > 0 && stack[sp - 1] != STATEMENT_LIST &&
+        stack[sp - 1] != EOF)
+      sp--;
+    if (sp == 0)
+      return;
+
+    if (stack[sp - 1] == EOF)
     {
-      case ID:
-      case PRINTLN:
-      case PRINT:
-      case SEMICOLON:
-      case LEFTBRACE:
-      case READINT:
-      case WHILE:
-      case DO:
-      case IF:
-        statement();
-        statementList();
-        break;
-      case EOF:
-      case RIGHTBRACE:
-        ;
-        break;
-      default:
-        throw 
-          genEx("Expecting statement, \"}\", or <EOF>");
+      if (currentToken.kind != EOF)
+        advance();
+      push(STATEMENT_LIST);
     }
+    else
+      if (stuck && currentToken.kind != EOF)
+        advance();
+
+    while (currentToken.kind != EOF &&
+        currentToken.kind != RIGHTBRACE &&
+        currentToken.kind != SEMICOLON &&
+        !statementFirst.get(currentToken.kind))
+      advance();
+    if (currentToken.kind == SEMICOLON)
+      advance();
   }
   //-----------------------------------------
-  private void statement()
+  // Errors found by parse(), in source order.
+  //
+  public ArrayList<S4ParseException> getDiagnostics()
   {
-    switch(currentToken.kind)
+    return diagnostics;
+  }
+  //-----------------------------------------
+  // Semantic actions.  Each statement action pops the
+  // pieces the statement was built from (its line,
+  // expressions, and the already-built statements it
+  // contains, which are the last ones added to the
+  // current list) and adds the new statement to the
+  // current list.  A token-dependent action runs right
+  // after its token is consumed, so it finds the token
+  // in previousToken.
+  //
+  private void action(int a)
+  {
+    S4Expr e;
+    S4Node body, elseBody;
+
+    if (streamTo != null)
+    {
+      if (diagnostics.size() == 0)
+        stream(a);
+      return;
+    }
+    if (!building())
+      return;
+
+    switch(a)
     {
-      case ID: 
-        assignmentStatement(); 
+      case ACT_BEGIN:
+        lists.add(new ArrayList<S4Node>());
         break;
-      case PRINTLN:    
-        printlnStatement(); 
+      case ACT_END:
+        program = lists.remove(lists.size() - 1);
         break;
-      case PRINT:
-        printStatement();
+      case ACT_TARGET:
+        targets.add(previousToken.image);
         break;
-      case SEMICOLON:
-        nullStatement();
+      case ACT_ASSIGN:
+        e = popExpr();
+        add(new S4Assign(popLine(), 
+              targets.toArray(new String[targets.size()]), e));
+        targets.clear();
         break;
-      case LEFTBRACE:
-        compoundStatement();
+      case ACT_NO_ARG:
+        print = new S4Print(0, null, null, false);
         break;
-      case READINT:
-        readintStatement();
+      case ACT_STRING:
+        print = new S4Print(0, null, previousToken.image, 
+            false);
         break;
-      case WHILE:
-        whileStatement();
+      case ACT_PRINTLN:
+      case ACT_PRINT:
+        if (print == null)
+          print = new S4Print(0, popExpr(), null, false);
+        print.line = popLine();
+        print.newline = a == ACT_PRINTLN;
+        add(print);
+        print = null;
         break;
-      case IF:
-        ifStatement();
+      case ACT_NULL:
+        add(new S4Block(popLine(), new ArrayList<S4Node>()));
         break;
-      case DO:
-        doStatement();
+      case ACT_BLOCK:
+        add(new S4Block(popLine(), 
+              lists.remove(lists.size() - 1)));
+        break;
+      case ACT_READINT:
+        add(new S4Readint(popLine(), 
+              targets.remove(targets.size() - 1)));
+        break;
+      case ACT_WHILE:
+        body = removeLast();
+        add(new S4While(popLine(), popExpr(), body));
+        break;
+      case ACT_DO:
+        body = removeLast();
+        add(new S4Do(popLine(), body, popExpr()));
+        break;
+      case ACT_IF_ELSE:
+        elseBody = removeLast();
+        body = removeLast();
+        add(new S4If(popLine(), popExpr(), body, elseBody));
+        break;
+      case ACT_IF:
+        body = removeLast();
+        add(new S4If(popLine(), popExpr(), body, null));
         break;
-      default:         
-        throw genEx("Expecting statement");
     }
   }
   //-----------------------------------------
-  private void assignmentStatement()
+  // Streaming actions.  Each one emits the code that
+  // belongs at its place in the production, which is
+  // where the original one-pass compiler emitted it, so
+  // a streamed compile writes exactly what that
+  // compiler wrote.  #whileTop, #doTop, #ifTest, and
+  // #whileTest push the labels their statement needs
+  // later; the statement's closing action pops them.
+  //
+  private void stream(int a)
   {
-    Token t;
-
-    t = currentToken;
-    consume(ID);
-    st.enter(t.image);
-    cg.emitInstruction("pc", t.image);
-    consume(ASSIGN);
-    assignmentTail();
-    cg.emitInstruction("stav");
-  }
-  //-----------------------------------------
-  private void whileStatement() {
-    Token t = currentToken;
-
-    consume(WHILE);
-    String label1 = cg.getLabel();
-    cg.emitLabel(label1);
-    consume(LEFTPAREN);
-    expr();
-    consume(RIGHTPAREN);
-    String label2 = cg.getLabel();
-    cg.emitInstruction("jz", label2);
-    statement();
-    cg.emitInstruction("ja", label1);
-    cg.emitLabel(label2);
-  }
-  //-----------------------------------------
-  private void doStatement() {
-    Token t = currentToken;
-
-    consume(DO);
-
-    String label1 = cg.getLabel();
-    String label2 = cg.getLabel();
-
-    cg.emitLabel(label1);
-
-    statement();
-
-
-
-    consume(WHILE);
-    consume(LEFTPAREN);
-    expr();
-
-
-    cg.emitInstruction("jnz", label1);
-
-
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
-  }
-  //-----------------------------------------
-  private void ifStatement() {
-    Token t = currentToken;
-
-    consume(IF);
-    consume(LEFTPAREN);
-    expr();
-    consume(RIGHTPAREN);
-
-    String label1 = cg.getLabel();
-    cg.emitInstruction("jz", label1);
-
-    statement();
-
-    elsePart(label1);
-  }
-  //-----------------------------------------
-  private void elsePart(String label1) {
-    switch (currentToken.kind) {
-      case ELSE:
-        consume(ELSE);
-        String label2 = cg.getLabel();
+    S4CodeGen cg = streamTo;
+    int label1, label2;
 
-        cg.emitInstruction("ja", label2);
+    switch(a)
+    {
+      case ACT_END:
+        cg.endCode();
+        break;
+      case ACT_TARGET:
+        cg.emitSymbol(S4Op.PC, previousToken.image);
+        break;
+      case ACT_CASCADE:
+        cg.emitInstruction(S4Op.DUPE);
+        cg.emitInstruction(S4Op.ROT);
+        cg.emitInstruction(S4Op.STAV);
+        break;
+      case ACT_ASSIGN:
+        cg.emitInstruction(S4Op.STAV);
+        break;
+      case ACT_DOUT:
+        cg.emitInstruction(S4Op.DOUT);
+        break;
+      case ACT_STRING:
+        cg.emitString(S4Op.PC, previousToken.image);
+        cg.emitInstruction(S4Op.SOUT);
+        break;
+      case ACT_NEWLINE:
+        cg.emitChar(S4Op.PC, '\n');
+        cg.emitInstruction(S4Op.AOUT);
+        break;
+      case ACT_READINT:
+        cg.emitInstruction(S4Op.DIN);
+        cg.emitInstruction(S4Op.STAV);
+        break;
+      case ACT_WHILE_TOP:
+        label1 = cg.getLabel();
         cg.emitLabel(label1);
-
-        statement();
-
+        pushLabel(label1);
+        break;
+      case ACT_WHILE_TEST:
+        label2 = cg.getLabel();
+        cg.emitLabelRef(S4Op.JZ, label2);
+        pushLabel(label2);
+        break;
+      case ACT_WHILE:
+        label2 = popLabel();
+        label1 = popLabel();
+        cg.emitLabelRef(S4Op.JA, label1);
         cg.emitLabel(label2);
-
         break;
-
-      default:
+      case ACT_DO_TOP:
+        label1 = cg.getLabel();
         cg.emitLabel(label1);
-
+        pushLabel(label1);
+        break;
+      case ACT_DO_TEST:
+        cg.emitLabelRef(S4Op.JNZ, popLabel());
+        break;
+      case ACT_IF_TEST:
+        label1 = cg.getLabel();
+        cg.emitLabelRef(S4Op.JZ, label1);
+        pushLabel(label1);
+        break;
+      case ACT_ELSE_BEGIN:
+        label1 = popLabel();
+        label2 = cg.getLabel();
+        cg.emitLabelRef(S4Op.JA, label2);
+        cg.emitLabel(label1);
+        pushLabel(label2);
+        break;
+      case ACT_IF_ELSE:
+      case ACT_IF:
+        cg.emitLabel(popLabel());
+        break;
     }
-
   }
   //-----------------------------------------
-  private void assignmentTail()
+  private void pushLabel(int label)
   {
-    Token t;
-    if (getToken(1).kind == ID &&
-        getToken(2).kind == ASSIGN)
-    {
-      t = currentToken;
-      consume(ID);
-      st.enter(t.image);
-      cg.emitInstruction("pc", t.image);
-      consume(ASSIGN);
-      assignmentTail();
-      cg.emitInstruction("dupe");
-      cg.emitInstruction("rot");
-      cg.emitInstruction("stav");
-    }
-    else
-    {
-      expr();
-      consume(SEMICOLON);
-    }
+    if (lbp == labels.length)
+      labels = Arrays.copyOf(labels, 2 * lbp);
+    labels[lbp++] = label;
   }
   //-----------------------------------------
-  private void printlnStatement()
+  private int popLabel()
   {
-    consume(PRINTLN);
-    consume(LEFTPAREN);
-    if (currentToken.kind != RIGHTPAREN)
-      printArg();
-    cg.emitInstruction("pc", "'\\n'");
-    cg.emitInstruction("aout");
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
+    return labels[--lbp];
   }
   //-----------------------------------------
-  private void printArg()
-  {     
-    Token t;
-    String label;
-
-    if (currentToken.kind != STRING)
-    {
-      expr();
-      cg.emitInstruction("dout");
-    }
-    else
-    {
-      t = currentToken;
-      consume(STRING);
-      label = cg.getLabel();
-      cg.emitInstruction("pc", label);
-      cg.emitInstruction("sout");
-      cg.emitdw("^" + label, t.image);
-    }
+  // Emit code to cg as the source is parsed, entering
+  // variables in st, instead of building the tree.
+  // parse() then returns null.
+  //
+  public void setStreamTo(S4CodeGen cg, S4SymTab st)
+  {
+    streamTo = cg;
+    this.st = st;
+    labels = new int[64];
+    pending = new ArrayList<S4Const>();
+    buildTree = false;
   }
   //-----------------------------------------
-  private void printStatement()
+  // The tree is built only if asked for and only until
+  // the first error.
+  //
+  private boolean building()
   {
-    consume(PRINT);
-    consume(LEFTPAREN);
-    printArg();
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
+    return buildTree && diagnostics.size() == 0;
   }
   //-----------------------------------------
-  private void nullStatement()
+  // With buildTree false, parse() only checks syntax
+  // (as for -syntax-only) and returns null.
+  //
+  public void setBuildTree(boolean buildTree)
   {
-    consume(SEMICOLON);
+    this.buildTree = buildTree;
   }
   //-----------------------------------------
-  private void compoundStatement()
+  private void add(S4Node statement)
   {
-    consume(LEFTBRACE);
-    statementList();
-    consume(RIGHTBRACE);
-  } 
+    lists.get(lists.size() - 1).add(statement);
+  }
   //-----------------------------------------
-  private void readintStatement()
+  private S4Node removeLast()
   {
-    Token t;
-
-    consume(READINT);
-    consume(LEFTPAREN);
-    t = currentToken;
-    consume(ID);
-    st.enter(t.image);
-    cg.emitInstruction("pc", t.image);
-    cg.emitInstruction("din");
-    cg.emitInstruction("stav");
-    consume(RIGHTPAREN);
-    consume(SEMICOLON);
-  } 
+    ArrayList<S4Node> list = lists.get(lists.size() - 1);
+    return list.remove(list.size() - 1);
+  }
   //-----------------------------------------
-  private void expr()
+  private S4Expr popExpr()
   {
-    term();
-    termList();
+    return exprs.remove(exprs.size() - 1);
   }
   //-----------------------------------------
-  private void termList()
+  private int popLine()
   {
-    switch(currentToken.kind)
-    {
-      case PLUS:
-        consume(PLUS);
-        term();
-        cg.emitInstruction("add");
-        termList();
-        break;
-      case MINUS:
-        consume(MINUS);
-        term();
-        cg.emitInstruction("sub");
-      case RIGHTPAREN:
-      case SEMICOLON:
-        ;
-        break;
-      default:
-        throw 
-          genEx("Expecting \"+\", \"-\", \")\", or \";\"");
-    }
+    return lines[--lp];
   }
   //-----------------------------------------
-  private void term()
+  private S4Expr expr()
   {
-    factor();
-    factorList();
+    return expr(1);
   }
   //-----------------------------------------
-  private void factorList()
+  // Precedence climbing: parse a factor, then keep
+  // absorbing binary operators whose precedence is at
+  // least minPrec.  The right operand of an operator is
+  // parsed at one level higher, which makes every
+  // operator in binaryPrec left associative.
+  //
+  private S4Expr expr(int minPrec)
   {
-    switch(currentToken.kind)
+    S4Expr left = factor();
+    if (binaryPrec[currentToken.kind] == 0 &&
+        !exprFollow.get(currentToken.kind))
+      throw genEx("Expecting op, \")\", or \";\"");
+
+    while (binaryPrec[currentToken.kind] >= minPrec)
     {
-      case TIMES:
-        consume(TIMES);
-        factor();
-        cg.emitInstruction("mult");
-        factorList();
-        break;
-      case DIVIDE:  
-        consume(DIVIDE);
-        factor();
-        cg.emitInstruction("div");
-        factorList();
-        break;
-      case PLUS:
-      case MINUS:
-      case RIGHTPAREN:
-      case SEMICOLON:
-        ;
-        break;
-      default:
-        throw genEx("Expecting op, \")\", or \";\"");
+      int op = currentToken.kind;
+      advance();
+      S4Expr right = expr(binaryPrec[op] + 1);
+      left = binary(op, left, right);
     }
+    return left;
   }
   //-----------------------------------------
-  private void factor()
+  private S4Expr factor()
   {  
     Token t;
+    S4Expr e;
 
     switch(currentToken.kind)
     {
       case UNSIGNED:
         t = currentToken;
         consume(UNSIGNED);
-        cg.emitInstruction("pwc", t.image);
-        break;
+        return constant(t.image);
       case ID:
         t = currentToken;
         consume(ID);
-        st.enter(t.image);
-        cg.emitInstruction("p", t.image);
-        break;
+        return variable(t.image);
       case LEFTPAREN:
         consume(LEFTPAREN);
-        expr();
+        e = expr();
         consume(RIGHTPAREN);
-        break;
+        return e;
       case PLUS:
         consume(PLUS);
-        factor();
-        break;
+        return factor();
       case MINUS:
         consume(MINUS);
         switch(currentToken.kind)
@@ -827,21 +1620,16 @@ class S4Parser implements S4Constants
           case UNSIGNED:
             t = currentToken;
             consume(UNSIGNED);
-            cg.emitInstruction("pwc", "-" + t.image);
-            break;
+            return constant("-" + t.image);
           case ID:
             t = currentToken;
             consume(ID);
-            st.enter(t.image);
-            cg.emitInstruction("p", t.image);
-            cg.emitInstruction("neg");
-            break;
+            return negate(variable(t.image));
           case LEFTPAREN:
             consume(LEFTPAREN);
-            expr();
+            e = expr();
             consume(RIGHTPAREN);
-            cg.emitInstruction("neg");
-            break;
+            return negate(e);
           case PLUS:
             do
             {
@@ -851,74 +1639,5878 @@ class S4Parser implements S4Constants
             if (currentToken.kind == MINUS)
             {
               consume(MINUS);
-              factor();
+              return factor();
             }
             else
-            {
-              factor();
-              cg.emitInstruction("neg");
-            }
-            break;
+              return negate(factor());
           case MINUS:
             consume(MINUS);
-            factor();
-            break;
+            return factor();
+          default:
+            throw genEx("Expecting factor");
         }
-        break;
       default:
         throw genEx("Expecting factor");
     }
   }
+  //-----------------------------------------
+  // Expression node factories.  They fold constants: a
+  // negated constant, or an operator applied to two
+  // constants, becomes one constant, computed as the
+  // target machine would (see S4Word).
+  //
+  // When streaming, each factory emits its node's code
+  // instead and returns null (expr() builds in
+  // postorder, so the operands' code is already out),
+  // except that constants are held back in pending,
+  // still as S4Const nodes, until it is clear they will
+  // not be folded.  Pending constants are always the
+  // last operands parsed, so anything else that is
+  // emitted first flushes them, in order.
+  //
+  private S4Expr constant(String image)
+  {
+    S4Const c = new S4Const(image);
+    if (streamTo != null)
+      pending.add(c);
+    return c;
+  }
+  //-----------------------------------------
+  private S4Expr variable(String name)
+  {
+    if (streamTo == null)
+      return new S4Var(name);
+    flushPending();
+    if (diagnostics.size() == 0)
+      streamTo.emitSymbol(S4Op.P, name);
+    return null;
+  }
+  //-----------------------------------------
+  private S4Expr negate(S4Expr operand)
+  {
+    if (fold && operand instanceof S4Const &&
+        S4Word.isWord(((S4Const)operand).image))
+    {
+      int v = S4Word.valueOf(((S4Const)operand).image);
+      return replace(1, S4Word.negate(v));
+    }
+    if (streamTo == null)
+      return new S4Neg(operand);
+    flushPending();
+    if (diagnostics.size() == 0)
+      streamTo.emitInstruction(S4Op.NEG);
+    return null;
+  }
+  //-----------------------------------------
+  private S4Expr binary(int op, S4Expr left, S4Expr right)
+  {
+    S4Op instruction = binaryInstruction[op];
+    if (fold && left instanceof S4Const && 
+        right instanceof S4Const)
+    {
+      String a = ((S4Const)left).image;
+      String b = ((S4Const)right).image;
+      if (S4Word.isWord(a) && S4Word.isWord(b) &&
+          S4Word.canFold(instruction, S4Word.valueOf(a),
+            S4Word.valueOf(b)))
+        return replace(2, S4Word.apply(instruction, 
+              S4Word.valueOf(a), S4Word.valueOf(b)));
+    }
+    if (streamTo == null)
+      return new S4Binary(op, instruction, left, right);
+    flushPending();
+    if (diagnostics.size() == 0)
+      streamTo.emitInstruction(instruction);
+    return null;
+  }
+  //-----------------------------------------
+  // The folded constant value, which replaces the n
+  // constants it was folded from on pending.
+  //
+  private S4Expr replace(int n, int value)
+  {
+    S4Const c = new S4Const(Integer.toString(value));
+    if (streamTo != null)
+    {
+      for (int i = 0; i < n; i++)
+        pending.remove(pending.size() - 1);
+      pending.add(c);
+    }
+    return c;
+  }
+  //-----------------------------------------
+  private void flushPending()
+  {
+    if (diagnostics.size() == 0)
+      for (S4Const c : pending)
+        streamTo.emitConstant(S4Op.PWC, c.image);
+    pending.clear();
+  }
+  //-----------------------------------------
+  // Constant folding is on unless turned off here.
+  //
+  public void setFold(boolean fold)
+  {
+    this.fold = fold;
+  }
 }                               // end of S4Parser class
 //======================================================
-class S4CodeGen
+// Arithmetic as the target machine does it, for the
+// compile-time evaluation of constant expressions: a
+// word is 16 bits, two's complement, results wrap, and
+// division truncates toward zero.  A division by zero,
+// or of the most negative word by -1, is left for run
+// time.
+//
+class S4Word
 {
-  private PrintWriter outFile;
-  private S4SymTab st;
-  private int labelNumber;
+  public static final int MIN = -32768;
+  public static final int MAX = 32767;
   //-----------------------------------------
-  public S4CodeGen(PrintWriter outFile, S4SymTab st)
+  // Is image (digits with an optional leading "-") a
+  // word?  A constant outside the word range is left
+  // as written.
+  //
+  public static boolean isWord(String image)
   {
-    this.outFile = outFile;
-    this.st = st;
-    labelNumber = 0;
+    int n = image.length();
+    int i = image.charAt(0) == '-' ? 1 : 0;
+    while (i < n - 1 && image.charAt(i) == '0')
+      i++;
+    if (n - i > 6)
+      return false;
+    long v = Long.parseLong(image);
+    return v >= MIN && v <= MAX;
   }
   //-----------------------------------------
-  public void emitInstruction(String op)
+  public static int valueOf(String image)
   {
-    outFile.printf("          %-4s%n", op); 
+    return (int)Long.parseLong(image);
   }
   //-----------------------------------------
-  public void emitInstruction(String op, String opnd)
-  {           
-    outFile.printf(
-        "          %-4s      %s%n", op, opnd); 
+  public static int wrap(long v)
+  {
+    return (short)v;
   }
   //-----------------------------------------
-  public void emitdw(String label, String value)
-  {           
-    outFile.printf(
-        "%-9s dw        %s%n", label + ":", value);
+  public static int negate(int a)
+  {
+    return wrap(-(long)a);
   }
   //-----------------------------------------
-  public void emitLabel(String label) {
-    outFile.printf(
-        "%-9s %n", label + ":");
+  public static boolean canFold(S4Op op, int a, int b)
+  {
+    return op != S4Op.DIV || (b != 0 && 
+        !(a == MIN && b == -1));
   }
   //-----------------------------------------
-  public void endCode()
+  public static int apply(S4Op op, int a, int b)
   {
-    outFile.println();
-    emitInstruction("halt");
-
-    int size = st.getSize();
-    // emit dw stmt for each symbol in the symbol table
-    for (int i=0; i < size; i++) 
-      emitdw(st.getSymbol(i), "0");
+    switch (op)
+    {
+      case ADD:
+        return wrap((long)a + b);
+      case SUB:
+        return wrap((long)a - b);
+      case MULT:
+        return wrap((long)a * b);
+      case DIV:
+        return wrap(a / b);
+      default:
+        throw new IllegalArgumentException(op.toString());
+    }
+  }
+}                                 // end of S4Word class
+//======================================================
+// Program tree built by S4Parser.  Statement nodes
+// carry the source line they start on, which the
+// emitter uses to place the source listing.  Passes
+// walk the tree through S4Visitor.
+//
+abstract class S4Node
+{
+  public int line;
+  //-----------------------------------------
+  public abstract <R> R accept(S4Visitor<R> v);
+}                                 // end of S4Node class
+//======================================================
+abstract class S4Expr extends S4Node
+{
+  //-----------------------------------------
+  // A deep copy of this expression.
+  //
+  public abstract S4Expr copy();
+}                                 // end of S4Expr class
+//======================================================
+// Integer constant.  image is the constant as written
+// (possibly with a leading "-"), so it is emitted
+// exactly as it appeared in the source.
+//
+class S4Const extends S4Expr
+{
+  public String image;
+  //-----------------------------------------
+  public S4Const(String image)
+  {
+    this.image = image;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitConst(this);
+  }
+  //-----------------------------------------
+  public S4Expr copy()
+  {
+    return new S4Const(image);
+  }
+}                                // end of S4Const class
+//======================================================
+class S4Var extends S4Expr
+{
+  public String name;
+  //-----------------------------------------
+  public S4Var(String name)
+  {
+    this.name = name;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitVar(this);
+  }
+  //-----------------------------------------
+  public S4Expr copy()
+  {
+    return new S4Var(name);
+  }
+}                                  // end of S4Var class
+//======================================================
+class S4Neg extends S4Expr
+{
+  public S4Expr operand;
+  //-----------------------------------------
+  public S4Neg(S4Expr operand)
+  {
+    this.operand = operand;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitNeg(this);
+  }
+  //-----------------------------------------
+  public S4Expr copy()
+  {
+    return new S4Neg(operand.copy());
+  }
+}                                  // end of S4Neg class
+//======================================================
+// Binary operation.  op is the token kind of the
+// operator and instruction the instruction that
+// implements it (from S4Parser's operator table).
+//
+class S4Binary extends S4Expr
+{
+  public int op;
+  public S4Op instruction;
+  public S4Expr left;
+  public S4Expr right;
+  //-----------------------------------------
+  public S4Binary(int op, S4Op instruction, 
+      S4Expr left, S4Expr right)
+  {
+    this.op = op;
+    this.instruction = instruction;
+    this.left = left;
+    this.right = right;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitBinary(this);
+  }
+  //-----------------------------------------
+  public S4Expr copy()
+  {
+    return new S4Binary(op, instruction, left.copy(), 
+        right.copy());
+  }
+}                               // end of S4Binary class
+//======================================================
+// A copy of the value computed just before it: its
+// code is a dupe.  It only appears as the right
+// operand of an S4Binary, standing for the value of
+// the left operand (so x * 2 can be x + x, computed as
+// p x; dupe; add).
+//
+class S4Dupe extends S4Expr
+{
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitDupe(this);
+  }
+  //-----------------------------------------
+  public S4Expr copy()
+  {
+    return new S4Dupe();
+  }
+}                                 // end of S4Dupe class
+//======================================================
+// Assignment, possibly cascaded: target[0] = 
+// target[1] = ... = value.
+//
+class S4Assign extends S4Node
+{
+  public String[] target;
+  public S4Expr value;
+  //-----------------------------------------
+  public S4Assign(int line, String[] target, S4Expr value)
+  {
+    this.line = line;
+    this.target = target;
+    this.value = value;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitAssign(this);
+  }
+}                               // end of S4Assign class
+//======================================================
+// print or println.  At most one of value and string
+// (a string literal as written) is non-null.
+//
+class S4Print extends S4Node
+{
+  public S4Expr value;
+  public String string;
+  public boolean newline;
+  //-----------------------------------------
+  public S4Print(int line, S4Expr value, String string,
+      boolean newline)
+  {
+    this.line = line;
+    this.value = value;
+    this.string = string;
+    this.newline = newline;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitPrint(this);
+  }
+}                                // end of S4Print class
+//======================================================
+class S4Readint extends S4Node
+{
+  public String name;
+  //-----------------------------------------
+  public S4Readint(int line, String name)
+  {
+    this.line = line;
+    this.name = name;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitReadint(this);
+  }
+}                              // end of S4Readint class
+//======================================================
+// Compound statement.  The null statement is a block
+// with no statements.
+//
+class S4Block extends S4Node
+{
+  public ArrayList<S4Node> statements;
+  //-----------------------------------------
+  public S4Block(int line, ArrayList<S4Node> statements)
+  {
+    this.line = line;
+    this.statements = statements;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitBlock(this);
+  }
+}                                // end of S4Block class
+//======================================================
+// while statement.  condition is null for a loop with
+// no test (see S4BranchPass).
+//
+class S4While extends S4Node
+{
+  public S4Expr condition;
+  public S4Node body;
+  //-----------------------------------------
+  public S4While(int line, S4Expr condition, S4Node body)
+  {
+    this.line = line;
+    this.condition = condition;
+    this.body = body;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitWhile(this);
   }
+}                                // end of S4While class
+//======================================================
+// do-while statement.  condition is null for a loop
+// with no test (see S4BranchPass).
+//
+class S4Do extends S4Node
+{
+  public S4Node body;
+  public S4Expr condition;
   //-----------------------------------------
-  public String getLabel()
+  public S4Do(int line, S4Node body, S4Expr condition)
+  {
+    this.line = line;
+    this.body = body;
+    this.condition = condition;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitDo(this);
+  }
+}                                   // end of S4Do class
+//======================================================
+// if statement; elseBody is null if there is no else.
+//
+class S4If extends S4Node
+{
+  public S4Expr condition;
+  public S4Node thenBody;
+  public S4Node elseBody;
+  //-----------------------------------------
+  public S4If(int line, S4Expr condition, S4Node thenBody,
+      S4Node elseBody)
+  {
+    this.line = line;
+    this.condition = condition;
+    this.thenBody = thenBody;
+    this.elseBody = elseBody;
+  }
+  //-----------------------------------------
+  public <R> R accept(S4Visitor<R> v)
+  {
+    return v.visitIf(this);
+  }
+}                                   // end of S4If class
+//======================================================
+interface S4Visitor<R>
+{
+  R visitConst(S4Const n);
+  R visitVar(S4Var n);
+  R visitNeg(S4Neg n);
+  R visitBinary(S4Binary n);
+  R visitDupe(S4Dupe n);
+  R visitAssign(S4Assign n);
+  R visitPrint(S4Print n);
+  R visitReadint(S4Readint n);
+  R visitBlock(S4Block n);
+  R visitWhile(S4While n);
+  R visitDo(S4Do n);
+  R visitIf(S4If n);
+}                         // end of S4Visitor interface
+//======================================================
+// Visitor that walks the whole tree in source order
+// and does nothing else.  Analysis passes extend it
+// and override the nodes they care about.
+//
+class S4Walker implements S4Visitor<Void>
+{
+  //-----------------------------------------
+  public void walk(List<S4Node> statements)
+  {
+    for (S4Node s : statements)
+      s.accept(this);
+  }
+  //-----------------------------------------
+  public Void visitConst(S4Const n)
+  {
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitVar(S4Var n)
+  {
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitNeg(S4Neg n)
+  {
+    n.operand.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitBinary(S4Binary n)
+  {
+    n.left.accept(this);
+    n.right.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitDupe(S4Dupe n)
+  {
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitAssign(S4Assign n)
+  {
+    n.value.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitPrint(S4Print n)
+  {
+    if (n.value != null)
+      n.value.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitReadint(S4Readint n)
+  {
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitBlock(S4Block n)
+  {
+    walk(n.statements);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitWhile(S4While n)
+  {
+    if (n.condition != null)
+      n.condition.accept(this);
+    n.body.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitDo(S4Do n)
+  {
+    n.body.accept(this);
+    if (n.condition != null)
+      n.condition.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitIf(S4If n)
+  {
+    n.condition.accept(this);
+    n.thenBody.accept(this);
+    if (n.elseBody != null)
+      n.elseBody.accept(this);
+    return null;
+  }
+}                               // end of S4Walker class
+//======================================================
+// Walker for passes that rewrite expressions: every
+// expression a statement holds is replaced by what
+// rewrite returns for it.
+//
+abstract class S4Rewriter extends S4Walker
+{
+  //-----------------------------------------
+  protected abstract S4Expr rewrite(S4Expr e);
+  //-----------------------------------------
+  public Void visitAssign(S4Assign n)
+  {
+    n.value = rewrite(n.value);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitPrint(S4Print n)
+  {
+    if (n.value != null)
+      n.value = rewrite(n.value);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitWhile(S4While n)
+  {
+    if (n.condition != null)
+      n.condition = rewrite(n.condition);
+    n.body.accept(this);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitDo(S4Do n)
+  {
+    n.body.accept(this);
+    if (n.condition != null)
+      n.condition = rewrite(n.condition);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitIf(S4If n)
+  {
+    n.condition = rewrite(n.condition);
+    n.thenBody.accept(this);
+    if (n.elseBody != null)
+      n.elseBody.accept(this);
+    return null;
+  }
+}                             // end of S4Rewriter class
+//======================================================
+// Source listing.  The token manager records each
+// source line it reads (and, with -debug_token_manager,
+// each token trace line) together with the current
+// line number; the emitter writes the entries out as
+// comments ahead of the code for the statement that
+// starts on that line.
+//
+class S4Listing
+{
+  private ArrayList<String> text;
+  private int[] line;
+  private int next;             // first entry not taken
+  private S4CodeGen direct;
+  //-----------------------------------------
+  public S4Listing()
+  {
+    text = new ArrayList<String>();
+    line = new int[64];
+    next = 0;
+  }
+  //-----------------------------------------
+  // A listing that keeps nothing: each entry is
+  // emitted to cg as a comment when it is added (as
+  // -stream needs).
+  //
+  public S4Listing(S4CodeGen cg)
+  {
+    this();
+    direct = cg;
+  }
+  //-----------------------------------------
+  public void add(int lineNumber, String s)
+  {
+    if (direct != null)
+    {
+      direct.emitComment(s);
+      return;
+    }
+
+    int size = text.size();
+    if (size == line.length)
+      line = Arrays.copyOf(line, 2 * size);
+    line[size] = lineNumber;
+    text.add(s);
+  }
+  //-----------------------------------------
+  // Is there an entry not yet taken for a line at or
+  // before lineNumber?
+  //
+  public boolean ready(int lineNumber)
+  {
+    return next < text.size() && line[next] <= lineNumber;
+  }
+  //-----------------------------------------
+  // Move the entries up through lineNumber that are
+  // not yet taken to a new listing.
+  //
+  public S4Listing split(int lineNumber)
+  {
+    S4Listing part = new S4Listing();
+    while (ready(lineNumber))
+    {
+      int n = line[next];
+      part.add(n, take());
+    }
+    return part;
+  }
+  //-----------------------------------------
+  public String take()
+  {
+    String s = text.get(next);
+    text.set(next++, null);
+    if (next == text.size())    // all taken, so reset
+    {
+      text.clear();
+      next = 0;
+    }
+    return s;
+  }
+}                              // end of S4Listing class
+//======================================================
+// Everything the passes share: the program tree, the
+// symbol table, the code generator, and the listing.
+//
+class S4Program
+{
+  public List<S4Node> statements;
+  public ArrayList<S4ParseException> diagnostics;
+  public S4SymTab st;
+  public S4CodeGen cg;
+  public S4Listing listing;
+  public boolean parallel;   // run passes in parallel
+  public boolean fold;       // fold constant expressions
+  private int temps;         // compiler temporaries made
+  //-----------------------------------------
+  public S4Program(S4SymTab st, S4CodeGen cg, 
+      S4Listing listing)
+  {
+    this.st = st;
+    this.cg = cg;
+    this.listing = listing;
+    statements = new ArrayList<S4Node>();
+    diagnostics = new ArrayList<S4ParseException>();
+    fold = true;
+  }
+  //-----------------------------------------
+  // A new compiler temporary: @T0, @T1, and so on,
+  // which cannot clash with S4 names.
+  //
+  public String newTemp()
+  {
+    return "@T" + temps++;
+  }
+}                              // end of S4Program class
+//======================================================
+interface S4Pass
+{
+  String getName();
+  void run(S4Program program);
+  // what the pass did, after a run (for -stats)
+  void report(PrintStream out);
+}                            // end of S4Pass interface
+//======================================================
+// Runs the registered passes in order over one
+// program, timing each one and measuring how much it
+// allocates.  Each pass has a level: level 0 passes
+// (parsing, symbols, emitting) always run, and the
+// others, the optimizations, run only if the
+// optimization level (-O0, -O1, -O2) is at least
+// theirs and they have not been disabled by name.
+// With measuring on, each optimization is also charged
+// with the instructions it removes and the estimated
+// executed instructions it saves (see S4Cost).  The
+// pipeline stops after any pass that leaves
+// diagnostics behind.  Its report is a table of these
+// figures followed by the report of each pass that
+// ran.
+//
+class S4Pipeline
+{
+  private ArrayList<S4Pass> passes;
+  private ArrayList<Integer> level;
+  private ArrayList<Boolean> enabled;
+  private int optimize;         // optimization level
+  private boolean measure;
+  private long[] nanos;
+  private long[] bytes;
+  private long[] removed;
+  private long[] saved;
+  private java.lang.management.ThreadMXBean bean;
+  //-----------------------------------------
+  public S4Pipeline()
+  {
+    passes = new ArrayList<S4Pass>();
+    level = new ArrayList<Integer>();
+    enabled = new ArrayList<Boolean>();
+    optimize = 2;
+    bean = java.lang.management.ManagementFactory
+      .getThreadMXBean();
+  }
+  //-----------------------------------------
+  // Add a pass that runs at optimization level
+  // passLevel and above (0 for always).
+  //
+  public void add(S4Pass pass, int passLevel)
+  {
+    passes.add(pass);
+    level.add(passLevel);
+    enabled.add(true);
+  }
+  //-----------------------------------------
+  public void setLevel(int optimize)
+  {
+    this.optimize = optimize;
+  }
+  //-----------------------------------------
+  public void setMeasure(boolean measure)
+  {
+    this.measure = measure;
+  }
+  //-----------------------------------------
+  // Disable the optional pass with the given name.
+  // Returns false if there is no such optional pass.
+  //
+  public boolean disable(String name)
+  {
+    for (int i = 0; i < passes.size(); i++)
+      if (passes.get(i).getName().equalsIgnoreCase(name) &&
+          level.get(i) > 0)
+      {
+        enabled.set(i, false);
+        return true;
+      }
+    return false;
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    int n = passes.size();
+    nanos = new long[n];
+    bytes = new long[n];
+    removed = new long[n];
+    saved = new long[n];
+    Arrays.fill(nanos, -1);
+
+    for (int i = 0; i < n; i++)
+    {
+      if (!enabled.get(i) || level.get(i) > optimize)
+        continue;
+      boolean charge = measure && level.get(i) > 0;
+      S4Cost before = charge ? S4Cost.of(program) : null;
+      long b = allocatedBytes();
+      long t = System.nanoTime();
+      passes.get(i).run(program);
+      nanos[i] = System.nanoTime() - t;
+      bytes[i] = allocatedBytes() - b;
+      if (charge)
+      {
+        S4Cost after = S4Cost.of(program);
+        removed[i] = before.instructions - after.instructions;
+        saved[i] = before.executed - after.executed;
+      }
+      if (program.diagnostics.size() > 0)
+        break;
+    }
+  }
+  //-----------------------------------------
+  // Bytes allocated so far by this thread, or 0 if the
+  // JVM cannot tell us.
+  //
+  private long allocatedBytes()
+  {
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean)bean)
+        .getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+    return 0;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s %12s %10s %12s%n", "pass",
+        "time (ms)", "alloc (KB)", "removed", "saved");
+    for (int i = 0; i < passes.size(); i++)
+    {
+      String name = passes.get(i).getName();
+      if (nanos[i] < 0)
+        out.printf("%-12s %10s %12s %10s %12s%n",
+            name, "-", "-", "-", "-");
+      else
+        if (measure && level.get(i) > 0)
+          out.printf("%-12s %10.2f %12d %10d %12d%n",
+              name, nanos[i] / 1e6, bytes[i] / 1024,
+              removed[i], saved[i]);
+        else
+          out.printf("%-12s %10.2f %12d %10s %12s%n",
+              name, nanos[i] / 1e6, bytes[i] / 1024,
+              "-", "-");
+    }
+    for (int i = 0; i < passes.size(); i++)
+      if (nanos[i] >= 0)
+        passes.get(i).report(out);
+  }
+}                             // end of S4Pipeline class
+//======================================================
+// An estimate of what a program costs: the number of
+// instructions in its code, and the number it
+// executes, estimated by weighting each instruction by
+// 10 for each loop it is in (up to four).  Before the
+// emit pass the tree is measured, counting the
+// instructions the emit pass will produce for it;
+// after, the buffered code is, with each backward jump
+// marking a loop.
+//
+class S4Cost
+{
+  private static final int DEEPEST = 4;
+
+  public long instructions;
+  public long executed;
+  //-----------------------------------------
+  public static S4Cost of(S4Program program)
+  {
+    S4Cost c = new S4Cost();
+    if (program.cg.size() > 0)
+      c.code(program.cg);
+    else
+      for (S4Node s : program.statements)
+        c.statement(s, 0);
+    return c;
+  }
+  //-----------------------------------------
+  // Number of instructions the code for s has.
+  //
+  public static int size(S4Node s)
+  {
+    S4Cost c = new S4Cost();
+    c.statement(s, 0);
+    return (int)c.instructions;
+  }
+  //-----------------------------------------
+  private void statement(S4Node s, int depth)
+  {
+    if (s instanceof S4Assign)
+    {
+      S4Assign n = (S4Assign)s;
+      add(expr(n.value) + 4 * n.target.length - 2, depth);
+    }
+    else
+      if (s instanceof S4Print)
+      {
+        S4Print n = (S4Print)s;
+        add((n.value != null ? expr(n.value) + 1 :
+              n.string != null ? 2 : 0) +
+            (n.newline ? 2 : 0), depth);
+      }
+      else
+        if (s instanceof S4Readint)
+          add(3, depth);
+        else
+          if (s instanceof S4Block)
+            for (S4Node t : ((S4Block)s).statements)
+              statement(t, depth);
+          else
+            if (s instanceof S4If)
+            {
+              S4If n = (S4If)s;
+              add(expr(n.condition) + 1 +
+                  (n.elseBody != null ? 1 : 0), depth);
+              statement(n.thenBody, depth);
+              if (n.elseBody != null)
+                statement(n.elseBody, depth);
+            }
+            else
+              if (s instanceof S4While)
+              {
+                // test, jz, and ja back (just ja if no
+                // test)
+                S4While n = (S4While)s;
+                add(n.condition == null ? 1 :
+                    expr(n.condition) + 2, depth + 1);
+                statement(n.body, depth + 1);
+              }
+              else
+              {
+                // test and jnz back (ja if no test)
+                S4Do n = (S4Do)s;
+                add(n.condition == null ? 1 :
+                    expr(n.condition) + 1, depth + 1);
+                statement(n.body, depth + 1);
+              }
+  }
+  //-----------------------------------------
+  private static int expr(S4Expr e)
+  {
+    return S4SimplifyPass.size(e);
+  }
+  //-----------------------------------------
+  private void code(S4CodeGen cg)
+  {
+    int n = cg.size();
+    int[] where = new int[cg.getLabelCount()];
+    for (int i = 0; i < n; i++)
+      if (cg.getOp(i) == S4Op.LABEL)
+        where[cg.getOperand(i)] = i;
+
+    // loops: depth goes up by one from the target of
+    // each backward jump through the jump
+    int[] change = new int[n + 1];
+    for (int i = 0; i < n; i++)
+    {
+      S4Op op = cg.getOp(i);
+      if ((op == S4Op.JA || op == S4Op.JZ ||
+            op == S4Op.JNZ) &&
+          cg.getKind(i) == S4CodeGen.LABEL &&
+          where[cg.getOperand(i)] < i)
+      {
+        change[where[cg.getOperand(i)]]++;
+        change[i + 1]--;
+      }
+    }
+    int depth = 0;
+    for (int i = 0; i < n; i++)
+    {
+      depth += change[i];
+      S4Op op = cg.getOp(i);
+      if (op.mnemonic != null && op != S4Op.DW)
+        add(1, depth);
+    }
+  }
+  //-----------------------------------------
+  // How many times code depth loops deep is taken to
+  // run.
+  //
+  public static long weight(int depth)
+  {
+    long weight = 1;
+    for (int d = Math.min(depth, DEEPEST); d > 0; d--)
+      weight *= 10;
+    return weight;
+  }
+  //-----------------------------------------
+  private void add(int count, int depth)
+  {
+    instructions += count;
+    executed += count * weight(depth);
+  }
+}                                 // end of S4Cost class
+//======================================================
+// Parse the source into program.statements.  With
+// program.parallel set, the whole token list is built
+// first and cut at top-level statement boundaries
+// found by S4Segmenter; the segments are parsed by
+// separate fork/join tasks and their statement lists
+// concatenated in order.  This is speculative: if any
+// segment has a syntax error, the token list is joined
+// back together and parsed sequentially, so the
+// diagnostics are exactly those of a sequential parse.
+//
+class S4ParsePass implements S4Pass, S4Constants
+{
+  private S4TokenMgr tm;
+  //-----------------------------------------
+  public S4ParsePass(S4TokenMgr tm)
+  {
+    this.tm = tm;
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "parse";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    if (!program.parallel)
+    {
+      S4Parser parser = new S4Parser(tm);
+      parser.setFold(program.fold);
+      program.statements = parser.parse();
+      program.diagnostics = parser.getDiagnostics();
+      return;
+    }
+
+    // build the token list
+    ArrayList<Token> list = new ArrayList<Token>();
+    Token t;
+    do
+    {
+      t = tm.getNextToken();
+      list.add(t);
+    } while (t.kind != EOF);
+    Token[] tokens = list.toArray(new Token[list.size()]);
+    link(tokens);
+
+    int[] start = S4Segmenter.split(tokens, 
+        S4Parallel.partCount(tokens.length / 64));
+    if (start != null && start.length > 1)
+    {
+      S4ParseTask[] task = new S4ParseTask[start.length];
+      for (int i = 0; i < start.length; i++)
+      {
+        int end = i + 1 < start.length ? 
+          start[i + 1] : tokens.length - 1;
+        if (end < tokens.length - 1)
+        {
+          // end the segment with its own EOF token
+          Token eof = new Token(EOF, "<EOF>");
+          eof.beginLine = eof.endLine = 
+            tokens[end].beginLine;
+          eof.beginColumn = eof.endColumn = 
+            tokens[end].beginColumn;
+          eof.next = eof;
+          tokens[end - 1].next = eof;
+        }
+        task[i] = new S4ParseTask(tokens[start[i]], 
+            program.fold);
+      }
+      ForkJoinTask.invokeAll(task);
+
+      ArrayList<S4Node> statements = new ArrayList<S4Node>();
+      boolean ok = true;
+      for (int i = 0; i < task.length && ok; i++)
+        if (task[i].join() != null)
+          statements.addAll(task[i].join());
+        else
+          ok = false;
+      if (ok)
+      {
+        program.statements = statements;
+        return;
+      }
+      link(tokens);
+    }
+
+    S4Parser parser = new S4Parser(tokens[0]);
+    parser.setFold(program.fold);
+    program.statements = parser.parse();
+    program.diagnostics = parser.getDiagnostics();
+  }
+  //-----------------------------------------
+  // Chain the tokens through their next fields,
+  // ending with an EOF token that refers to itself.
+  //
+  private static void link(Token[] tokens)
+  {
+    for (int i = 0; i < tokens.length - 1; i++)
+      tokens[i].next = tokens[i + 1];
+    tokens[tokens.length - 1].next = 
+      tokens[tokens.length - 1];
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+  }
+}                            // end of S4ParsePass class
+//======================================================
+// -stream: parse, enter symbols, and emit code in one
+// pass, with no program tree, token list, or buffered
+// listing, so memory does not grow with the size of
+// the source.  What is kept is
+//
+//    the parse stack, the label stack, and the Java
+//    stack of expr(), all O(nesting depth);
+//    the current source line and the token being
+//    built, O(longest line);
+//    the symbol table, O(symbol count);
+//    the diagnostics, O(error count);
+//
+// plus the fixed-size output buffer.  The tokens the
+// parser has passed are garbage as soon as it moves on
+// (at most two are looked at), and each source line is
+// written out as a comment as soon as it is read.
+// String constants are not pooled: the dw of each one
+// goes to a temporary file as soon as it is parsed, and
+// the file is copied to the end of the .a file, so a
+// string that is used twice gets two dws.
+//
+class S4StreamPass implements S4Pass
+{
+  private S4TokenMgr tm;
+  //-----------------------------------------
+  public S4StreamPass(S4TokenMgr tm)
+  {
+    this.tm = tm;
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "stream";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    S4Parser parser = new S4Parser(tm);
+    program.cg.setStreaming(true);
+    parser.setStreamTo(program.cg, program.st);
+    parser.setFold(program.fold);
+    parser.parse();
+    program.diagnostics = parser.getDiagnostics();
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+  }
+}                           // end of S4StreamPass class
+//======================================================
+// Parse one segment of the token list.  The result is
+// the segment's statement list, or null if the segment
+// has a syntax error.
+//
+class S4ParseTask extends RecursiveTask<ArrayList<S4Node>>
+{
+  private static final long serialVersionUID = 1L;
+  private Token first;
+  private boolean fold;
+  //-----------------------------------------
+  public S4ParseTask(Token first, boolean fold)
+  {
+    this.first = first;
+    this.fold = fold;
+  }
+  //-----------------------------------------
+  protected ArrayList<S4Node> compute()
+  {
+    S4Parser parser = new S4Parser(first);
+    parser.setFold(fold);
+    return parser.parse();
+  }
+}                            // end of S4ParseTask class
+//======================================================
+// Finds top-level statement boundaries in a token list
+// without parsing it: statements are skipped by
+// matching parentheses and braces and following the
+// shape of each statement kind, which is enough
+// because expressions never contain ";", "{" or "}".
+// A malformed list makes split give up.
+//
+class S4Segmenter implements S4Constants
+{
+  private Token[] tokens;
+  //-----------------------------------------
+  private S4Segmenter(Token[] tokens)
+  {
+    this.tokens = tokens;
+  }
+  //-----------------------------------------
+  // Return the token indexes at which at most parts
+  // segments of roughly equal size start (the first is
+  // always 0), or null if the token list cannot be
+  // scanned.  Every segment boundary is a top-level
+  // statement boundary.
+  //
+  public static int[] split(Token[] tokens, int parts)
+  {
+    S4Segmenter s = new S4Segmenter(tokens);
+    int size = Math.max(1, tokens.length / parts);
+    ArrayList<Integer> start = new ArrayList<Integer>();
+    start.add(0);
+    int i = 0;
+    while (tokens[i].kind != EOF)
+    {
+      i = s.statement(i);
+      if (i < 0)
+        return null;
+      if (tokens[i].kind != EOF && 
+          i - start.get(start.size() - 1) >= size)
+        start.add(i);
+    }
+
+    int[] result = new int[start.size()];
+    for (int j = 0; j < result.length; j++)
+      result[j] = start.get(j);
+    return result;
+  }
+  //-----------------------------------------
+  // Return the index just past the statement that
+  // starts at i, or -1 if there is none.
+  //
+  private int statement(int i)
+  {
+    int j;
+
+    switch(tokens[i].kind)
+    {
+      case ID:
+      case PRINTLN:
+      case PRINT:
+      case READINT:
+        for (j = i + 1; tokens[j].kind != SEMICOLON; j++)
+          if (tokens[j].kind == EOF || 
+              tokens[j].kind == LEFTBRACE ||
+              tokens[j].kind == RIGHTBRACE)
+            return -1;
+        return j + 1;
+      case SEMICOLON:
+        return i + 1;
+      case LEFTBRACE:
+        j = i + 1;
+        while (j >= 0 && tokens[j].kind != RIGHTBRACE)
+          j = statement(j);
+        return j < 0 ? -1 : j + 1;
+      case WHILE:
+        j = parens(i + 1);
+        return j < 0 ? -1 : statement(j);
+      case IF:
+        j = parens(i + 1);
+        if (j >= 0)
+          j = statement(j);
+        if (j >= 0 && tokens[j].kind == ELSE)
+          j = statement(j + 1);
+        return j;
+      case DO:
+        j = statement(i + 1);
+        if (j < 0 || tokens[j].kind != WHILE)
+          return -1;
+        j = parens(j + 1);
+        if (j < 0 || tokens[j].kind != SEMICOLON)
+          return -1;
+        return j + 1;
+      default:
+        return -1;
+    }
+  }
+  //-----------------------------------------
+  // Return the index just past the parenthesized
+  // expression that starts at i, or -1.
+  //
+  private int parens(int i)
+  {
+    if (tokens[i].kind != LEFTPAREN)
+      return -1;
+    int depth = 0;
+    for (int j = i; ; j++)
+      switch(tokens[j].kind)
+      {
+        case LEFTPAREN:
+          depth++;
+          break;
+        case RIGHTPAREN:
+          if (--depth == 0)
+            return j + 1;
+          break;
+        case EOF:
+        case SEMICOLON:
+        case LEFTBRACE:
+        case RIGHTBRACE:
+          return -1;
+      }
+  }
+}                            // end of S4Segmenter class
+//======================================================
+// Helpers for the parallel mode of the passes.
+//
+class S4Parallel
+{
+  //-----------------------------------------
+  // Number of parts to divide n units of work into:
+  // a few per processor, but never more than n.
+  //
+  public static int partCount(int n)
+  {
+    int parts = 4 * Runtime.getRuntime()
+      .availableProcessors();
+    return Math.max(1, Math.min(n, parts));
+  }
+  //-----------------------------------------
+  // Index at which part i of parts equal parts of
+  // n items starts.
+  //
+  public static int partStart(int i, int parts, int n)
+  {
+    return (int)((long)n * i / parts);
+  }
+}                             // end of S4Parallel class
+//======================================================
+// Partial evaluation of programs that read no input,
+// on with -peval.  Such a program's output is fixed,
+// so the pass runs it at compile time and, if it
+// finishes, replaces the whole program by one print of
+// what it printed.  It gives up, leaving the program
+// to be compiled as usual, if the run reaches a
+// readint, divides by zero (or overflows a division),
+// uses more than BUDGET steps (an expression node, a
+// test, or a statement each count one), or prints more
+// than MAX_OUTPUT characters, whose dw would fill
+// memory.
+//
+// The output is kept as the text of a string literal:
+// strings as written, with their escapes, numbers in
+// decimal, and \n for each newline.
+//
+class S4EvaluatePass implements S4Pass
+{
+  private static final long BUDGET = 1000000;
+  private static final int MAX_OUTPUT = 4096;
+
+  private HashMap<String, Integer> env;
+  private StringBuilder output;
+  private long steps;
+  private boolean evaluated;
+  //-----------------------------------------
+  // Thrown to give up the run.
+  //
+  private static class Stop extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "peval";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    List<S4Node> statements = program.statements;
+    if (statements.isEmpty())
+      return;
+    env = new HashMap<String, Integer>();
+    output = new StringBuilder();
+    steps = 0;
+    try
+    {
+      for (S4Node s : statements)
+        statement(s);
+    }
+    catch (Stop e)
+    {
+      return;
+    }
+
+    int line = statements.get(0).line;
+    statements.clear();
+    if (output.length() > 0)
+      statements.add(new S4Print(line, null, 
+            "\"" + output + "\"", false));
+    evaluated = true;
+  }
+  //-----------------------------------------
+  private void statement(S4Node s)
+  {
+    step();
+    if (s instanceof S4Assign)
+    {
+      S4Assign n = (S4Assign)s;
+      int v = value(n.value);
+      for (String t : n.target)
+        env.put(t, v);
+    }
+    else
+      if (s instanceof S4Print)
+      {
+        S4Print n = (S4Print)s;
+        if (n.value != null)
+          print(Integer.toString(value(n.value)));
+        else
+          if (n.string != null)
+            print(n.string.substring(1, 
+                  n.string.length() - 1));
+        if (n.newline)
+          print("\\n");
+      }
+      else
+        if (s instanceof S4Block)
+          for (S4Node t : ((S4Block)s).statements)
+            statement(t);
+        else
+          if (s instanceof S4If)
+          {
+            S4If n = (S4If)s;
+            if (value(n.condition) != 0)
+              statement(n.thenBody);
+            else
+              if (n.elseBody != null)
+                statement(n.elseBody);
+          }
+          else
+            if (s instanceof S4While)
+            {
+              S4While n = (S4While)s;
+              while (n.condition == null ||
+                  value(n.condition) != 0)
+                statement(n.body);
+            }
+            else
+              if (s instanceof S4Do)
+              {
+                S4Do n = (S4Do)s;
+                do
+                  statement(n.body);
+                while (n.condition == null ||
+                    value(n.condition) != 0);
+              }
+              else
+                throw new Stop();       // readint
+  }
+  //-----------------------------------------
+  private int value(S4Expr e)
+  {
+    step();
+    if (e instanceof S4Const)
+    {
+      String image = ((S4Const)e).image;
+      if (!S4Word.isWord(image))
+        throw new Stop();
+      return S4Word.valueOf(image);
+    }
+    if (e instanceof S4Var)
+    {
+      Integer v = env.get(((S4Var)e).name);
+      return v == null ? 0 : v;     // as its dw says
+    }
+    if (e instanceof S4Neg)
+      return S4Word.negate(value(((S4Neg)e).operand));
+    S4Binary n = (S4Binary)e;
+    int a = value(n.left);
+    int b = n.right instanceof S4Dupe ? a : value(n.right);
+    if (!S4Word.canFold(n.instruction, a, b))
+      throw new Stop();
+    return S4Word.apply(n.instruction, a, b);
+  }
+  //-----------------------------------------
+  private void step()
+  {
+    if (++steps > BUDGET)
+      throw new Stop();
+  }
+  //-----------------------------------------
+  private void print(String s)
+  {
+    output.append(s);
+    if (output.length() > MAX_OUTPUT)
+      throw new Stop();
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "peval", "count");
+    out.printf("%-12s %10s%n", "evaluated", 
+        evaluated ? "yes" : "no");
+    out.printf("%-12s %10d%n", "steps", steps);
+    out.printf("%-12s %10d%n", "output", 
+        evaluated ? output.length() : 0);
+  }
+}                         // end of S4EvaluatePass class
+//======================================================
+// Conditional constant propagation.  This finds what
+// sparse conditional constant propagation (Wegman and
+// Zadeck) finds on the tree, but not by their method:
+// there is no SSA form, and values are not pushed
+// along def-use edges of a flow graph.  Instead the
+// tree is run abstractly, statement by statement,
+// which S4's structured control flow makes simple.
+// Each variable is either a known constant or varying;
+// every variable starts as the constant 0 its dw gives
+// it, and readint makes one vary.  A branch whose test
+// comes out constant is followed only the way it goes,
+// so code that cannot run does not spoil what is known
+// after it.  Loops are run until what is known at
+// their tests stops changing.  Since a variable can
+// only go from constant to varying, that takes at most
+// one trip more than there are variables assigned in
+// the loop; but an outer loop reruns the inner ones on
+// each of its trips, so after MAX_ROUNDS trips the
+// variables a loop assigns are all taken to vary
+// (widened), which ends it at the next trip.
+//
+// Then each load of a variable known to be constant is
+// replaced by the constant.  Folding what results, and
+// the branches that become constant, is left to the
+// simplify and dce passes that follow.  Code found not
+// to run is left alone: its branch folds away.
+//
+// Only the variables a statement assigns can change
+// across it, so an if or loop saves and joins just
+// those (see S4AssignedNames), not the whole state.
+//
+class S4ConstantPass implements S4Pass
+{
+  private static final int MAX_ROUNDS = 8;
+
+  private HashMap<String, Integer> env;  // known values,
+                                         // null if varying
+  private boolean reachable;
+  private boolean rewrite;      // replacing loads?
+  private IdentityHashMap<S4Node, Set<String>> assigned;
+  private int replaced;         // loads replaced
+  private int branches;         // tests found constant
+  private int widened;          // loops widened
+  //-----------------------------------------
+  public String getName()
+  {
+    return "sccp";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    env = new HashMap<String, Integer>();
+    assigned = new IdentityHashMap<S4Node, Set<String>>();
+    reachable = true;
+    rewrite = true;
+    for (S4Node s : program.statements)
+      statement(s);
+  }
+  //-----------------------------------------
+  private void statement(S4Node s)
+  {
+    if (!reachable)
+      return;
+    if (s instanceof S4Assign)
+    {
+      S4Assign n = (S4Assign)s;
+      n.value = rewrite(n.value);
+      Integer v = value(n.value);
+      for (String t : n.target)
+        env.put(t, v);
+    }
+    else
+      if (s instanceof S4Readint)
+        env.put(((S4Readint)s).name, null);
+      else
+        if (s instanceof S4Print)
+          ((S4Print)s).value = rewrite(((S4Print)s).value);
+        else
+          if (s instanceof S4Block)
+            for (S4Node t : ((S4Block)s).statements)
+              statement(t);
+          else
+            if (s instanceof S4If)
+              ifStatement((S4If)s);
+            else
+              if (s instanceof S4While)
+                whileStatement((S4While)s);
+              else
+                if (s instanceof S4Do)
+                  doStatement((S4Do)s);
+  }
+  //-----------------------------------------
+  private void ifStatement(S4If n)
+  {
+    n.condition = rewrite(n.condition);
+    Integer c = value(n.condition);
+    if (c != null)
+    {
+      if (rewrite)
+        branches++;
+      if (c != 0)
+        statement(n.thenBody);
+      else
+        if (n.elseBody != null)
+          statement(n.elseBody);
+      return;
+    }
+
+    Set<String> names = assigned(n);
+    HashMap<String, Integer> before = save(names);
+    statement(n.thenBody);
+    HashMap<String, Integer> then = reachable ? save(names) : null;
+    restore(before);
+    reachable = true;
+    if (n.elseBody != null)
+      statement(n.elseBody);
+    if (then != null)
+      if (reachable)
+        restore(join(then, save(names)));
+      else
+      {
+        restore(then);
+        reachable = true;
+      }
+  }
+  //-----------------------------------------
+  private void whileStatement(S4While n)
+  {
+    Set<String> names = assigned(n);
+    HashMap<String, Integer> head = save(names);
+    boolean outer = rewrite;
+    rewrite = false;
+    Integer c;
+    int rounds = 0;
+    while (true)
+    {
+      restore(head);
+      c = n.condition == null ?
+        Integer.valueOf(1) : value(n.condition);
+      if (c != null && c == 0)
+        break;
+      statement(n.body);
+      if (!reachable)
+      {
+        reachable = true;
+        break;
+      }
+      HashMap<String, Integer> next = join(head, save(names));
+      if (next.equals(head))
+        break;
+      head = ++rounds < MAX_ROUNDS ? next : varying(names);
+    }
+    rewrite = outer;
+
+    restore(head);
+    if (rewrite)
+    {
+      n.condition = rewrite(n.condition);
+      if (c != null && n.condition != null)
+        branches++;
+      if (c == null || c != 0)
+        statement(n.body);
+      reachable = true;
+      restore(head);
+    }
+    reachable = c == null || c == 0;
+  }
+  //-----------------------------------------
+  private void doStatement(S4Do n)
+  {
+    Set<String> names = assigned(n);
+    HashMap<String, Integer> head = save(names);
+    HashMap<String, Integer> end = null;
+    boolean outer = rewrite;
+    rewrite = false;
+    Integer c = null;
+    int rounds = 0;
+    while (true)
+    {
+      restore(head);
+      statement(n.body);
+      if (!reachable)
+        break;
+      c = n.condition == null ?
+        Integer.valueOf(1) : value(n.condition);
+      end = save(names);
+      if (c != null && c == 0)
+        break;
+      HashMap<String, Integer> next = join(head, end);
+      if (next.equals(head))
+        break;
+      head = ++rounds < MAX_ROUNDS ? next : varying(names);
+    }
+    rewrite = outer;
+
+    if (rewrite)
+    {
+      restore(head);
+      reachable = true;
+      statement(n.body);
+      if (reachable)
+      {
+        n.condition = rewrite(n.condition);
+        if (c != null && n.condition != null)
+          branches++;
+      }
+    }
+    if (end == null)
+      reachable = false;        // the body never ends
+    else
+    {
+      restore(end);
+      reachable = c == null || c == 0;
+    }
+  }
+  //-----------------------------------------
+  // The value of e if it is constant, else null.
+  //
+  private Integer value(S4Expr e)
+  {
+    if (e instanceof S4Const)
+    {
+      String image = ((S4Const)e).image;
+      return S4Word.isWord(image) ? S4Word.valueOf(image) :
+        null;
+    }
+    if (e instanceof S4Var)
+      return known(((S4Var)e).name);
+    if (e instanceof S4Neg)
+    {
+      Integer a = value(((S4Neg)e).operand);
+      return a == null ? null : S4Word.negate(a);
+    }
+    if (e instanceof S4Binary)
+    {
+      S4Binary n = (S4Binary)e;
+      Integer a = value(n.left);
+      Integer b = n.right instanceof S4Dupe ? a : value(n.right);
+      if (a == null || b == null ||
+          !S4Word.canFold(n.instruction, a, b))
+        return null;
+      return S4Word.apply(n.instruction, a, b);
+    }
+    return null;
+  }
+  //-----------------------------------------
+  // What is known about variable name: its value, or
+  // null if it varies.  A variable not yet assigned
+  // holds the 0 its dw gives it.
+  //
+  private Integer known(String name)
+  {
+    if (!env.containsKey(name))
+      return 0;
+    return env.get(name);
+  }
+  //-----------------------------------------
+  // e with its loads of constant variables replaced,
+  // if rewriting.
+  //
+  private S4Expr rewrite(S4Expr e)
+  {
+    if (!rewrite)
+      return e;
+    if (e instanceof S4Var)
+    {
+      Integer v = known(((S4Var)e).name);
+      if (v == null)
+        return e;
+      replaced++;
+      return new S4Const(Integer.toString(v));
+    }
+    if (e instanceof S4Neg)
+      ((S4Neg)e).operand = rewrite(((S4Neg)e).operand);
+    else
+      if (e instanceof S4Binary)
+      {
+        ((S4Binary)e).left = rewrite(((S4Binary)e).left);
+        ((S4Binary)e).right = rewrite(((S4Binary)e).right);
+      }
+    return e;
+  }
+  //-----------------------------------------
+  // The variables s assigns, found once per statement.
+  //
+  private Set<String> assigned(S4Node s)
+  {
+    Set<String> names = assigned.get(s);
+    if (names == null)
+    {
+      S4AssignedNames a = new S4AssignedNames();
+      s.accept(a);
+      names = a.names;
+      assigned.put(s, names);
+    }
+    return names;
+  }
+  //-----------------------------------------
+  private HashMap<String, Integer> save(Set<String> names)
+  {
+    HashMap<String, Integer> m = 
+      new HashMap<String, Integer>();
+    for (String name : names)
+      m.put(name, known(name));
+    return m;
+  }
+  //-----------------------------------------
+  private void restore(HashMap<String, Integer> m)
+  {
+    env.putAll(m);
+  }
+  //-----------------------------------------
+  // A loop's state with all the variables it assigns
+  // varying.
+  //
+  private HashMap<String, Integer> varying(Set<String> names)
+  {
+    widened++;
+    HashMap<String, Integer> m = 
+      new HashMap<String, Integer>();
+    for (String name : names)
+      m.put(name, null);
+    return m;
+  }
+  //-----------------------------------------
+  // Where a and b (over the same variables) disagree,
+  // the variable varies.
+  //
+  private static HashMap<String, Integer> join(
+      HashMap<String, Integer> a, HashMap<String, Integer> b)
+  {
+    HashMap<String, Integer> m = 
+      new HashMap<String, Integer>(a);
+    for (Map.Entry<String, Integer> e : b.entrySet())
+    {
+      Integer v = m.get(e.getKey());
+      if (v == null || !v.equals(e.getValue()))
+        m.put(e.getKey(), null);
+    }
+    return m;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "sccp", "count");
+    out.printf("%-12s %10d%n", "replaced", replaced);
+    out.printf("%-12s %10d%n", "branches", branches);
+    out.printf("%-12s %10d%n", "widened", widened);
+  }
+}                         // end of S4ConstantPass class
+//======================================================
+// Algebraic simplification of the tree's expressions,
+// bottom up.  The rules are identities (x + 0, x * 1,
+// x / 1, 0 - x to -x), annihilators (x * 0, x - x),
+// sign rules (-(-x), x + -y), strength reduction of
+// x * 2 to x + x (p x; dupe; add) and of x * -1 to -x,
+// reassociation of constants ((x + 1) + 2 to x + 3),
+// and folding of constants that meet after a rewrite.
+// Constant operands of + and * are moved to the right
+// so that the rules need only look there, except when
+// the right operand is a dupe (an S4Dupe must stay on
+// the right, since it copies the left operand); then
+// c op dupe folds as c op c.
+//
+// S4 expressions have no side effects, except that a
+// division can fail at run time.  So an operand is
+// dropped only if it has no division in it, and a
+// division is never rewritten into something that
+// cannot fail.  Each rule counts how often it applies.
+// What the pass saves is counted once for each
+// expression a statement holds, however many rules
+// rewrote it: the instructions removed from it, and
+// those times S4Cost's weight for the loops the
+// statement is in, an estimate of the executed
+// instructions saved.
+//
+class S4SimplifyPass extends S4Rewriter implements S4Pass
+{
+  private static final String[] ruleName =
+  {
+    "fold", "identity", "annihilate", "sub-self",
+    "neg-neg", "add-neg", "mult-neg-one", "mult-two",
+    "reassociate"
+  };
+  private static final int FOLD = 0;
+  private static final int IDENTITY = 1;
+  private static final int ANNIHILATE = 2;
+  private static final int SUB_SELF = 3;
+  private static final int NEG_NEG = 4;
+  private static final int ADD_NEG = 5;
+  private static final int MULT_NEG_ONE = 6;
+  private static final int MULT_TWO = 7;
+  private static final int REASSOCIATE = 8;
+
+  private int[] applied;        // times each rule applied
+  private long removed;         // instructions removed
+  private long saved;           // executed ones saved
+  private int depth;            // loops around statement
+  //-----------------------------------------
+  public S4SimplifyPass()
+  {
+    applied = new int[ruleName.length];
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "simplify";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    walk(program.statements);
+  }
+  //-----------------------------------------
+  public Void visitWhile(S4While n)
+  {
+    depth++;
+    super.visitWhile(n);
+    depth--;
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitDo(S4Do n)
+  {
+    depth++;
+    super.visitDo(n);
+    depth--;
+    return null;
+  }
+  //-----------------------------------------
+  // Simplify an expression a statement holds, and
+  // count what that saves.
+  //
+  protected S4Expr rewrite(S4Expr e)
+  {
+    int before = size(e);
+    S4Expr after = simplify(e);
+    removed += before - size(after);
+    saved += (before - size(after)) * S4Cost.weight(depth);
+    return after;
+  }
+  //-----------------------------------------
+  private S4Expr simplify(S4Expr e)
+  {
+    if (e instanceof S4Neg)
+    {
+      S4Neg n = (S4Neg)e;
+      n.operand = simplify(n.operand);
+      return negate(n);
+    }
+    if (e instanceof S4Binary)
+    {
+      S4Binary n = (S4Binary)e;
+      n.left = simplify(n.left);
+      n.right = simplify(n.right);
+      return binary(n);
+    }
+    return e;
+  }
+  //-----------------------------------------
+  // Simplify a negation whose operand is simplified.
+  //
+  private S4Expr negate(S4Neg n)
+  {
+    S4Expr a = n.operand;
+    if (isWord(a))
+      return applies(FOLD, constant(S4Word.negate(value(a))));
+    if (a instanceof S4Neg)
+      return applies(NEG_NEG, ((S4Neg)a).operand);
+    return n;
+  }
+  //-----------------------------------------
+  // Simplify a binary operation whose operands are
+  // simplified.
+  //
+  private S4Expr binary(S4Binary n)
+  {
+    S4Op op = n.instruction;
+    // a dupe stands for the left operand, so c op dupe
+    // folds like c op c
+    S4Expr right = n.right instanceof S4Dupe ? n.left : n.right;
+    if (isWord(n.left) && isWord(right) &&
+        S4Word.canFold(op, value(n.left), value(right)))
+      return applies(FOLD, constant(S4Word.apply(op,
+              value(n.left), value(right))));
+    // and it must stay on the right
+    if ((op == S4Op.ADD || op == S4Op.MULT) &&
+        isWord(n.left) && !(n.right instanceof S4Dupe))
+    {
+      S4Expr t = n.left;
+      n.left = n.right;
+      n.right = t;
+    }
+
+    S4Expr a = n.left;
+    S4Expr b = n.right;
+    switch (op)
+    {
+      case ADD:
+        if (is(b, 0))
+          return applies(IDENTITY, a);
+        if (b instanceof S4Neg)
+          return applies(ADD_NEG,
+              binary(make(S4Op.SUB, a, ((S4Neg)b).operand)));
+        break;
+      case SUB:
+        if (is(b, 0))
+          return applies(IDENTITY, a);
+        if (is(a, 0))
+          return applies(IDENTITY, negate(new S4Neg(b)));
+        if (b instanceof S4Neg)
+          return applies(ADD_NEG,
+              binary(make(S4Op.ADD, a, ((S4Neg)b).operand)));
+        if (same(a, b) && pure(a))
+          return applies(SUB_SELF, constant(0));
+        break;
+      case MULT:
+        if (is(b, 1))
+          return applies(IDENTITY, a);
+        if (is(b, 0) && pure(a))
+          return applies(ANNIHILATE, b);
+        if (is(b, -1))
+          return applies(MULT_NEG_ONE, negate(new S4Neg(a)));
+        if (is(b, 2))
+          return applies(MULT_TWO,
+              make(S4Op.ADD, a, new S4Dupe()));
+        break;
+      case DIV:
+        if (is(b, 1))
+          return applies(IDENTITY, a);
+        break;
+    }
+
+    // (x + c1) + c2 and the like
+    if (isWord(b) && a instanceof S4Binary &&
+        isWord(((S4Binary)a).right))
+    {
+      S4Binary l = (S4Binary)a;
+      int c1 = value(l.right);
+      int c2 = value(b);
+      if (additive(op) && additive(l.instruction))
+      {
+        long c = (l.instruction == S4Op.ADD ? c1 : -(long)c1) +
+          (op == S4Op.ADD ? c2 : -(long)c2);
+        return applies(REASSOCIATE, binary(make(S4Op.ADD,
+                l.left, constant(S4Word.wrap(c)))));
+      }
+      if (op == S4Op.MULT && l.instruction == S4Op.MULT)
+        return applies(REASSOCIATE, binary(make(S4Op.MULT,
+                l.left, constant(S4Word.apply(op, c1, c2)))));
+    }
+    return n;
+  }
+  //-----------------------------------------
+  // Count an application of rule, which gives after.
+  //
+  private S4Expr applies(int rule, S4Expr after)
+  {
+    applied[rule]++;
+    return after;
+  }
+  //-----------------------------------------
+  private static boolean additive(S4Op op)
+  {
+    return op == S4Op.ADD || op == S4Op.SUB;
+  }
+  //-----------------------------------------
+  private static S4Binary make(S4Op op, S4Expr left,
+      S4Expr right)
+  {
+    int kind = op == S4Op.ADD ? S4Constants.PLUS :
+      op == S4Op.SUB ? S4Constants.MINUS :
+      op == S4Op.MULT ? S4Constants.TIMES :
+      S4Constants.DIVIDE;
+    return new S4Binary(kind, op, left, right);
+  }
+  //-----------------------------------------
+  private static S4Const constant(int value)
+  {
+    return new S4Const(Integer.toString(value));
+  }
+  //-----------------------------------------
+  private static boolean isWord(S4Expr e)
+  {
+    return e instanceof S4Const &&
+      S4Word.isWord(((S4Const)e).image);
+  }
+  //-----------------------------------------
+  private static int value(S4Expr e)
+  {
+    return S4Word.valueOf(((S4Const)e).image);
+  }
+  //-----------------------------------------
+  private static boolean is(S4Expr e, int v)
+  {
+    return isWord(e) && value(e) == v;
+  }
+  //-----------------------------------------
+  // Number of instructions in the code for e.
+  //
+  public static int size(S4Expr e)
+  {
+    if (e instanceof S4Neg)
+      return size(((S4Neg)e).operand) + 1;
+    if (e instanceof S4Binary)
+      return size(((S4Binary)e).left) +
+        size(((S4Binary)e).right) + 1;
+    return 1;
+  }
+  //-----------------------------------------
+  // Can e be evaluated with no chance of failing (it
+  // has no division)?
+  //
+  public static boolean pure(S4Expr e)
+  {
+    if (e instanceof S4Neg)
+      return pure(((S4Neg)e).operand);
+    if (e instanceof S4Binary)
+      return ((S4Binary)e).instruction != S4Op.DIV &&
+        pure(((S4Binary)e).left) &&
+        pure(((S4Binary)e).right);
+    return true;
+  }
+  //-----------------------------------------
+  // Are a and b the same expression?
+  //
+  public static boolean same(S4Expr a, S4Expr b)
+  {
+    if (a instanceof S4Const && b instanceof S4Const)
+      return ((S4Const)a).image.equals(((S4Const)b).image);
+    if (a instanceof S4Var && b instanceof S4Var)
+      return ((S4Var)a).name.equals(((S4Var)b).name);
+    if (a instanceof S4Dupe && b instanceof S4Dupe)
+      return true;              // both copy the same left
+    if (a instanceof S4Neg && b instanceof S4Neg)
+      return same(((S4Neg)a).operand, ((S4Neg)b).operand);
+    if (a instanceof S4Binary && b instanceof S4Binary)
+      return ((S4Binary)a).instruction ==
+          ((S4Binary)b).instruction &&
+        same(((S4Binary)a).left, ((S4Binary)b).left) &&
+        same(((S4Binary)a).right, ((S4Binary)b).right);
+    return false;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "rule", "applied");
+    for (int r = 0; r < ruleName.length; r++)
+      out.printf("%-12s %10d%n", ruleName[r], applied[r]);
+    out.printf("%-12s %10d%n", "removed", removed);
+    out.printf("%-12s %10d%n", "saved", saved);
+  }
+}                         // end of S4SimplifyPass class
+//======================================================
+// Resolve at compile time the branches whose condition
+// is a constant.  An if becomes the arm that is taken
+// (or nothing); while (0) goes away; do s while (0)
+// becomes s; and a while or do whose condition is a
+// nonzero constant becomes a loop with no test.  S4 has
+// no way out of such a loop, so the statements after
+// it in the same list are unreachable and are dropped
+// too.
+//
+class S4BranchPass implements S4Pass
+{
+  private int resolved;         // branches resolved
+  private int removed;          // statements removed
+  //-----------------------------------------
+  public String getName()
+  {
+    return "dce";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    program.statements = list(program.statements);
+  }
+  //-----------------------------------------
+  // The statements left of statements.
+  //
+  private ArrayList<S4Node> list(List<S4Node> statements)
+  {
+    ArrayList<S4Node> out = new ArrayList<S4Node>();
+    for (int i = 0; i < statements.size(); i++)
+    {
+      S4Node s = statement(statements.get(i));
+      if (s == null)
+        continue;
+      out.add(s);
+      if (endless(s))
+      {
+        for (int j = i + 1; j < statements.size(); j++)
+          removed += count(statements.get(j));
+        break;
+      }
+    }
+    return out;
+  }
+  //-----------------------------------------
+  // What s becomes, or null if it goes away.
+  //
+  private S4Node statement(S4Node s)
+  {
+    if (s instanceof S4Block)
+    {
+      S4Block b = (S4Block)s;
+      b.statements = list(b.statements);
+      return b;
+    }
+    if (s instanceof S4If)
+    {
+      S4If n = (S4If)s;
+      n.thenBody = body(n.thenBody);
+      if (n.elseBody != null)
+        n.elseBody = body(n.elseBody);
+      if (!known(n.condition))
+        return n;
+      resolved++;
+      if (value(n.condition) != 0)
+      {
+        if (n.elseBody != null)
+          removed += count(n.elseBody);
+        return n.thenBody;
+      }
+      removed += count(n.thenBody);
+      return n.elseBody;
+    }
+    if (s instanceof S4While)
+    {
+      S4While n = (S4While)s;
+      n.body = body(n.body);
+      if (!known(n.condition))
+        return n;
+      resolved++;
+      if (value(n.condition) != 0)
+      {
+        n.condition = null;
+        return n;
+      }
+      removed += count(n.body);
+      return null;
+    }
+    if (s instanceof S4Do)
+    {
+      S4Do n = (S4Do)s;
+      n.body = body(n.body);
+      if (!known(n.condition))
+        return n;
+      resolved++;
+      if (value(n.condition) != 0)
+      {
+        n.condition = null;
+        return n;
+      }
+      return n.body;
+    }
+    return s;
+  }
+  //-----------------------------------------
+  // What the body s of another statement becomes.  A
+  // body that goes away becomes a null statement.
+  //
+  private S4Node body(S4Node s)
+  {
+    S4Node b = statement(s);
+    if (b == null)
+      b = new S4Block(s.line, new ArrayList<S4Node>());
+    return b;
+  }
+  //-----------------------------------------
+  // Is s a loop with no test?
+  //
+  private static boolean endless(S4Node s)
+  {
+    return s instanceof S4While && 
+        ((S4While)s).condition == null ||
+      s instanceof S4Do && ((S4Do)s).condition == null;
+  }
+  //-----------------------------------------
+  private static boolean known(S4Expr e)
+  {
+    return e instanceof S4Const &&
+      S4Word.isWord(((S4Const)e).image);
+  }
+  //-----------------------------------------
+  private static int value(S4Expr e)
+  {
+    return S4Word.valueOf(((S4Const)e).image);
+  }
+  //-----------------------------------------
+  // Number of statements in s, counting s.
+  //
+  private static int count(S4Node s)
+  {
+    S4StatementCounter c = new S4StatementCounter();
+    s.accept(c);
+    return c.count;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "dce", "count");
+    out.printf("%-12s %10d%n", "resolved", resolved);
+    out.printf("%-12s %10d%n", "removed", removed);
+  }
+}                           // end of S4BranchPass class
+//======================================================
+// Counts the statements in a tree.  Blocks count only
+// for what they hold.
+//
+class S4StatementCounter extends S4Walker
+{
+  public int count;
+  //-----------------------------------------
+  public Void visitAssign(S4Assign n)
+  {
+    count++;
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitPrint(S4Print n)
+  {
+    count++;
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitReadint(S4Readint n)
+  {
+    count++;
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitWhile(S4While n)
+  {
+    count++;
+    return super.visitWhile(n);
+  }
+  //-----------------------------------------
+  public Void visitDo(S4Do n)
+  {
+    count++;
+    return super.visitDo(n);
+  }
+  //-----------------------------------------
+  public Void visitIf(S4If n)
+  {
+    count++;
+    return super.visitIf(n);
+  }
+}                     // end of S4StatementCounter class
+//======================================================
+// Unrolling of counted loops: a while or do loop whose
+// body ends with i = i + s or i = i - s (s a constant),
+// assigns i nowhere else, and tests an expression of i
+// and constants alone, after an earlier i = c in the
+// same statement list with nothing between assigning
+// i.  The trip count is then found by stepping i, with
+// 16-bit wraparound, until the test comes out 0 (a
+// loop that would take more than 65536 trips never
+// ends and is left alone).
+//
+// If the body, step included, times the trip count
+// comes to at most FULL instructions, and there are at
+// most MAX_TRIPS trips, the loop is replaced by that
+// many copies of its body, each with i replaced by the
+// constant it has on that trip.  Otherwise, given at
+// least two rounds of factor trips, the loop becomes
+// the leftover trips, unrolled as above, followed by a
+// loop whose body is factor copies, the kth with i
+// replaced by i + k * s and one i = i + factor * s at
+// the end.  The copies are folded as they are made.
+//
+class S4UnrollPass extends S4Rewriter implements S4Pass
+{
+  private static final int FULL = 200;
+  private static final int MAX_TRIPS = 64;
+
+  private int factor;
+  private S4SimplifyPass folder;
+  private String variable;      // the one replaced
+  private S4Expr replacement;   // and what by
+  private int full;             // loops fully unrolled
+  private int partial;          // loops unrolled by factor
+  //-----------------------------------------
+  public S4UnrollPass()
+  {
+    factor = 4;
+    folder = new S4SimplifyPass();
+  }
+  //-----------------------------------------
+  // Set the factor partly unrolled loops are unrolled
+  // by (1 for none).
+  //
+  public void setFactor(int factor)
+  {
+    this.factor = factor;
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "unroll";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    list(program.statements);
+  }
+  //-----------------------------------------
+  private void list(List<S4Node> list)
+  {
+    for (int j = 0; j < list.size(); j++)
+    {
+      S4Node s = list.get(j);
+      statement(s);
+      if (s instanceof S4While || s instanceof S4Do)
+        list.set(j, unroll(s, list, j));
+    }
+  }
+  //-----------------------------------------
+  private void statement(S4Node s)
+  {
+    if (s instanceof S4Block)
+      list(((S4Block)s).statements);
+    else
+      if (s instanceof S4If)
+      {
+        S4If n = (S4If)s;
+        n.thenBody = body(n.thenBody);
+        if (n.elseBody != null)
+          n.elseBody = body(n.elseBody);
+      }
+      else
+        if (s instanceof S4While)
+          ((S4While)s).body = body(((S4While)s).body);
+        else
+          if (s instanceof S4Do)
+            ((S4Do)s).body = body(((S4Do)s).body);
+  }
+  //-----------------------------------------
+  // A loop or if body, in which a loop can be
+  // unrolled too.
+  //
+  private S4Node body(S4Node s)
+  {
+    if (!(s instanceof S4While) && !(s instanceof S4Do))
+    {
+      statement(s);
+      return s;
+    }
+    ArrayList<S4Node> list = new ArrayList<S4Node>();
+    list.add(s);
+    list(list);
+    return list.get(0);
+  }
+  //-----------------------------------------
+  // The loop at list[j], unrolled if it is a counted
+  // loop.
+  //
+  private S4Node unroll(S4Node loop, List<S4Node> list,
+      int j)
+  {
+    boolean testFirst = loop instanceof S4While;
+    S4Node body = testFirst ?
+      ((S4While)loop).body : ((S4Do)loop).body;
+    S4Expr condition = testFirst ?
+      ((S4While)loop).condition : ((S4Do)loop).condition;
+    if (condition == null)
+      return loop;
+
+    // the body and its last statement, i = i + s
+    ArrayList<S4Node> statements;
+    if (body instanceof S4Block)
+      statements = ((S4Block)body).statements;
+    else
+    {
+      statements = new ArrayList<S4Node>();
+      statements.add(body);
+    }
+    if (statements.isEmpty() ||
+        !(statements.get(statements.size() - 1)
+          instanceof S4Assign))
+      return loop;
+    S4Assign step = (S4Assign)statements.get(
+        statements.size() - 1);
+    if (step.target.length != 1 || 
+        !(step.value instanceof S4Binary))
+      return loop;
+    String i = step.target[0];
+    S4Binary b = (S4Binary)step.value;
+    if ((b.instruction != S4Op.ADD && 
+          b.instruction != S4Op.SUB) ||
+        !(b.left instanceof S4Var) ||
+        !((S4Var)b.left).name.equals(i) ||
+        !(b.right instanceof S4Const) ||
+        !S4Word.isWord(((S4Const)b.right).image))
+      return loop;
+    int s = S4Word.valueOf(((S4Const)b.right).image);
+    if (b.instruction == S4Op.SUB)
+      s = S4Word.negate(s);
+
+    // i must be assigned nowhere else in the body
+    S4AssignedNames names = new S4AssignedNames();
+    for (int k = 0; k < statements.size() - 1; k++)
+      statements.get(k).accept(names);
+    if (names.names.contains(i))
+      return loop;
+
+    // and given a constant before the loop
+    Integer first = null;
+    for (int k = j - 1; k >= 0 && first == null; k--)
+    {
+      S4Node t = list.get(k);
+      if (t instanceof S4Assign &&
+          Arrays.asList(((S4Assign)t).target).contains(i))
+      {
+        S4Expr v = ((S4Assign)t).value;
+        if (!(v instanceof S4Const) ||
+            !S4Word.isWord(((S4Const)v).image))
+          return loop;
+        first = S4Word.valueOf(((S4Const)v).image);
+      }
+      else
+      {
+        names = new S4AssignedNames();
+        t.accept(names);
+        if (names.names.contains(i))
+          return loop;
+      }
+    }
+    if (first == null)
+      return loop;
+
+    // count the trips
+    int trips = 0;
+    int value = first;
+    while (true)
+    {
+      if (testFirst || trips > 0)
+      {
+        Integer c = value(condition, i, value);
+        if (c == null)
+          return loop;
+        if (c == 0)
+          break;
+      }
+      if (++trips > 65536)
+        return loop;
+      value = S4Word.wrap((long)value + s);
+    }
+
+    // unroll it; each trip costs the body and the step,
+    // which becomes i = c
+    long size = S4Cost.size(new S4Assign(step.line,
+          new String[] {i}, new S4Const("0")));
+    for (int k = 0; k < statements.size() - 1; k++)
+      size += S4Cost.size(statements.get(k));
+    ArrayList<S4Node> out = new ArrayList<S4Node>();
+    int leftover = trips;
+    if (size * trips > FULL || trips > MAX_TRIPS)
+    {
+      if (factor < 2 || trips < 2 * factor)
+        return loop;
+      leftover = trips % factor;
+    }
+    value = first;
+    for (int t = 0; t < leftover; t++)
+    {
+      copies(statements, i,
+          new S4Const(Integer.toString(value)), out);
+      value = S4Word.wrap((long)value + s);
+      out.add(new S4Assign(step.line, new String[] {i},
+            new S4Const(Integer.toString(value))));
+    }
+    folder.walk(out);
+    if (leftover == trips)
+    {
+      full++;
+      return new S4Block(loop.line, out);
+    }
+
+    ArrayList<S4Node> unrolled = new ArrayList<S4Node>();
+    for (int k = 0; k < factor; k++)
+      copies(statements, i, k == 0 ? new S4Var(i) :
+          new S4Binary(S4Constants.PLUS, S4Op.ADD, new S4Var(i),
+            new S4Const(Integer.toString(
+                S4Word.wrap((long)k * s)))), unrolled);
+    unrolled.add(new S4Assign(step.line, new String[] {i},
+          new S4Binary(S4Constants.PLUS, S4Op.ADD, new S4Var(i),
+            new S4Const(Integer.toString(
+                S4Word.wrap((long)factor * s))))));
+    folder.walk(unrolled);
+    S4Block newBody = new S4Block(body.line, unrolled);
+    if (testFirst)
+      out.add(new S4While(loop.line, condition, newBody));
+    else
+      out.add(new S4Do(loop.line, newBody, condition));
+    partial++;
+    return new S4Block(loop.line, out);
+  }
+  //-----------------------------------------
+  // Add copies of all but the last of statements to
+  // out, with variable i replaced by replacement.
+  //
+  private void copies(ArrayList<S4Node> statements,
+      String i, S4Expr replacement, ArrayList<S4Node> out)
+  {
+    variable = i;
+    this.replacement = replacement;
+    for (int k = 0; k < statements.size() - 1; k++)
+    {
+      S4Node s = copy(statements.get(k));
+      s.accept(this);
+      out.add(s);
+    }
+  }
+  //-----------------------------------------
+  protected S4Expr rewrite(S4Expr e)
+  {
+    if (e instanceof S4Var)
+      return ((S4Var)e).name.equals(variable) ?
+        replacement.copy() : e;
+    if (e instanceof S4Neg)
+      ((S4Neg)e).operand = rewrite(((S4Neg)e).operand);
+    else
+      if (e instanceof S4Binary)
+      {
+        S4Binary n = (S4Binary)e;
+        n.left = rewrite(n.left);
+        // a dupe of what is now a constant (i * 2 is
+        // i + dupe) becomes that constant, which the
+        // folder folds as it would any other
+        if (n.right instanceof S4Dupe &&
+            n.left instanceof S4Const)
+          n.right = n.left.copy();
+        else
+          n.right = rewrite(n.right);
+      }
+    return e;
+  }
+  //-----------------------------------------
+  // A copy of statement s.
+  //
+  private static S4Node copy(S4Node s)
+  {
+    if (s instanceof S4Assign)
+    {
+      S4Assign n = (S4Assign)s;
+      return new S4Assign(n.line, n.target.clone(),
+          n.value.copy());
+    }
+    if (s instanceof S4Print)
+    {
+      S4Print n = (S4Print)s;
+      return new S4Print(n.line, 
+          n.value == null ? null : n.value.copy(),
+          n.string, n.newline);
+    }
+    if (s instanceof S4Readint)
+      return new S4Readint(s.line, ((S4Readint)s).name);
+    if (s instanceof S4Block)
+    {
+      ArrayList<S4Node> list = new ArrayList<S4Node>();
+      for (S4Node t : ((S4Block)s).statements)
+        list.add(copy(t));
+      return new S4Block(s.line, list);
+    }
+    if (s instanceof S4If)
+    {
+      S4If n = (S4If)s;
+      return new S4If(n.line, n.condition.copy(),
+          copy(n.thenBody),
+          n.elseBody == null ? null : copy(n.elseBody));
+    }
+    if (s instanceof S4While)
+    {
+      S4While n = (S4While)s;
+      return new S4While(n.line, 
+          n.condition == null ? null : n.condition.copy(),
+          copy(n.body));
+    }
+    S4Do n = (S4Do)s;
+    return new S4Do(n.line, copy(n.body),
+        n.condition == null ? null : n.condition.copy());
+  }
+  //-----------------------------------------
+  // The value of e when variable i is value, or null
+  // if e uses another variable or cannot be evaluated.
+  //
+  private static Integer value(S4Expr e, String i, 
+      int value)
+  {
+    if (e instanceof S4Const)
+    {
+      String image = ((S4Const)e).image;
+      return S4Word.isWord(image) ? S4Word.valueOf(image) :
+        null;
+    }
+    if (e instanceof S4Var)
+      return ((S4Var)e).name.equals(i) ? value : null;
+    if (e instanceof S4Neg)
+    {
+      Integer a = value(((S4Neg)e).operand, i, value);
+      return a == null ? null : S4Word.negate(a);
+    }
+    if (e instanceof S4Binary)
+    {
+      S4Binary n = (S4Binary)e;
+      Integer a = value(n.left, i, value);
+      Integer b = n.right instanceof S4Dupe ? a :
+        value(n.right, i, value);
+      if (a == null || b == null ||
+          !S4Word.canFold(n.instruction, a, b))
+        return null;
+      return S4Word.apply(n.instruction, a, b);
+    }
+    return null;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "unroll", "count");
+    out.printf("%-12s %10d%n", "full", full);
+    out.printf("%-12s %10d%n", "partial", partial);
+  }
+}                           // end of S4UnrollPass class
+//======================================================
+// Loop inversion: while (c) s becomes
+//
+//    if (c) do s while (c);
+//
+// so the test is made once up front, and then only at
+// the bottom of the loop, where a single jnz goes back
+// to the body.  Each iteration runs one jump instead
+// of two (jz at the top, ja at the bottom), at the
+// cost of a second copy of the test in the code.
+//
+class S4InvertPass implements S4Pass
+{
+  private int inverted;
+  //-----------------------------------------
+  public String getName()
+  {
+    return "invert";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    List<S4Node> statements = program.statements;
+    for (int i = 0; i < statements.size(); i++)
+      statements.set(i, statement(statements.get(i)));
+  }
+  //-----------------------------------------
+  private S4Node statement(S4Node s)
+  {
+    if (s instanceof S4Block)
+    {
+      ArrayList<S4Node> list = ((S4Block)s).statements;
+      for (int i = 0; i < list.size(); i++)
+        list.set(i, statement(list.get(i)));
+    }
+    else
+      if (s instanceof S4If)
+      {
+        S4If n = (S4If)s;
+        n.thenBody = statement(n.thenBody);
+        if (n.elseBody != null)
+          n.elseBody = statement(n.elseBody);
+      }
+      else
+        if (s instanceof S4Do)
+          ((S4Do)s).body = statement(((S4Do)s).body);
+        else
+          if (s instanceof S4While)
+          {
+            S4While n = (S4While)s;
+            n.body = statement(n.body);
+            if (n.condition != null)
+            {
+              inverted++;
+              return new S4If(n.line, n.condition, 
+                  new S4Do(n.line, n.body, n.condition.copy()),
+                  null);
+            }
+          }
+    return s;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "invert", "count");
+    out.printf("%-12s %10d%n", "inverted", inverted);
+  }
+}                           // end of S4InvertPass class
+//======================================================
+// Loop-invariant code motion.  An expression in a
+// while or do loop (its test or its body) whose
+// variables the loop never assigns has the same value
+// on every trip through the loop, so it is computed
+// once, into a compiler temporary, just before the
+// loop, and the loop loads the temporary instead.  Only
+// the largest such expressions are hoisted, and only
+// those with no division: a hoisted expression is
+// evaluated even if the loop runs zero times, or never
+// reaches it, and so must not be able to fail.
+//
+// Outer loops are done first, so that an expression
+// invariant in a whole nest of loops goes all the way
+// out.
+//
+class S4InvariantPass extends S4Rewriter implements S4Pass
+{
+  private S4Program program;
+  private HashSet<String> assigned;  // in current loop
+  private ArrayList<S4Node> list;    // its hoisted code
+  private int line;                  // and its line
+  private int hoisted;          // expressions hoisted
+  private int saved;            // instructions saved
+                                // per trip
+  //-----------------------------------------
+  public String getName()
+  {
+    return "licm";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    this.program = program;
+    List<S4Node> statements = program.statements;
+    for (int i = 0; i < statements.size(); i++)
+      statements.set(i, statement(statements.get(i)));
+  }
+  //-----------------------------------------
+  private S4Node statement(S4Node s)
+  {
+    if (s instanceof S4Block)
+    {
+      ArrayList<S4Node> list = ((S4Block)s).statements;
+      for (int i = 0; i < list.size(); i++)
+        list.set(i, statement(list.get(i)));
+    }
+    else
+      if (s instanceof S4If)
+      {
+        S4If n = (S4If)s;
+        n.thenBody = statement(n.thenBody);
+        if (n.elseBody != null)
+          n.elseBody = statement(n.elseBody);
+      }
+      else
+        if (s instanceof S4While)
+        {
+          S4Node h = hoist(s);
+          S4While n = (S4While)s;
+          n.body = statement(n.body);
+          return h;
+        }
+        else
+          if (s instanceof S4Do)
+          {
+            S4Node h = hoist(s);
+            S4Do n = (S4Do)s;
+            n.body = statement(n.body);
+            return h;
+          }
+    return s;
+  }
+  //-----------------------------------------
+  // Hoist the invariant expressions out of loop.
+  // Returns loop, or a block of the assignments to the
+  // temporaries followed by loop.
+  //
+  private S4Node hoist(S4Node loop)
+  {
+    S4AssignedNames names = new S4AssignedNames();
+    loop.accept(names);
+    assigned = names.names;
+    list = new ArrayList<S4Node>();
+    line = loop.line;
+    loop.accept(this);
+    if (list.isEmpty())
+      return loop;
+    list.add(loop);
+    return new S4Block(loop.line, list);
+  }
+  //-----------------------------------------
+  protected S4Expr rewrite(S4Expr e)
+  {
+    if (!(e instanceof S4Neg) && !(e instanceof S4Binary))
+      return e;
+    if (invariant(e) && S4SimplifyPass.pure(e))
+      return temp(e);
+    if (e instanceof S4Neg)
+    {
+      S4Neg n = (S4Neg)e;
+      n.operand = rewrite(n.operand);
+    }
+    else
+    {
+      S4Binary n = (S4Binary)e;
+      n.left = rewrite(n.left);
+      n.right = rewrite(n.right);
+    }
+    return e;
+  }
+  //-----------------------------------------
+  // A load of the temporary that holds e, which is
+  // made, and its assignment added to list, if no
+  // earlier copy of e has one.
+  //
+  private S4Expr temp(S4Expr e)
+  {
+    saved += S4SimplifyPass.size(e) - 1;
+    for (S4Node s : list)
+    {
+      S4Assign a = (S4Assign)s;
+      if (S4SimplifyPass.same(a.value, e))
+        return new S4Var(a.target[0]);
+    }
+    String name = program.newTemp();
+    list.add(new S4Assign(line, new String[] {name}, e));
+    hoisted++;
+    return new S4Var(name);
+  }
+  //-----------------------------------------
+  // Is e made only of constants and variables the
+  // current loop does not assign?
+  //
+  private boolean invariant(S4Expr e)
+  {
+    if (e instanceof S4Var)
+      return !assigned.contains(((S4Var)e).name);
+    if (e instanceof S4Neg)
+      return invariant(((S4Neg)e).operand);
+    if (e instanceof S4Binary)
+      return invariant(((S4Binary)e).left) &&
+        invariant(((S4Binary)e).right);
+    return true;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "licm", "count");
+    out.printf("%-12s %10d%n", "hoisted", hoisted);
+    out.printf("%-12s %10d%n", "saved/trip", saved);
+  }
+}                        // end of S4InvariantPass class
+//======================================================
+// Collects the variables a statement assigns, by
+// assignment or readint.
+//
+class S4AssignedNames extends S4Walker
+{
+  public HashSet<String> names = new HashSet<String>();
+  //-----------------------------------------
+  public Void visitAssign(S4Assign n)
+  {
+    for (String t : n.target)
+      names.add(t);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitReadint(S4Readint n)
+  {
+    names.add(n.name);
+    return null;
+  }
+}                        // end of S4AssignedNames class
+//======================================================
+// Common subexpression elimination within straight-line
+// regions: runs of assignments, prints, and readints,
+// which have no labels between them.  First the region
+// is value numbered: each variable and expression gets
+// a number, the same for values that must be the same
+// (a copy a = b gives a the number of b, and a + c is
+// c + a), and an expression, not a leaf, whose value a
+// variable still holds becomes a load of that
+// variable.  So after a = b; x = a + c, y = b + c
+// becomes y = x, which matching the text of the
+// expressions would miss.  Then two ways of reusing a
+// value are tried, and each is used only where it
+// executes fewer instructions:
+//
+//    E op E, with E not a leaf, becomes E; dupe; op
+//    (an S4Dupe), which saves |E| - 1 instructions;
+//
+//    k copies of E in the region, none of whose
+//    variables is assigned in between, become loads of
+//    a compiler temporary (see S4Program.newTemp)
+//    assigned E just before the statement with the
+//    first copy.  That costs
+//    |E| + 2 + k instructions instead of k * |E|.
+//
+// The temporaries are chosen greedily, best saving
+// first.  A statement evaluates its expression before
+// it does anything else, so computing E a little
+// earlier, in the temporary's assignment, cannot be
+// observed, even if E divides by zero.
+//
+class S4CsePass implements S4Pass
+{
+  private S4Program program;
+  private HashMap<String, Integer> numbers;  // variables'
+  private HashMap<String, Integer> values;   // expressions'
+  private HashMap<Integer, String> holder;   // by number
+  private int next;             // next value number
+  private int temps;            // temporaries made
+  private int dupes;
+  private int copies;           // loads of held values
+  private int saved;            // instructions saved
+
+  // the copies of one expression in a region
+  private static class Group
+  {
+    S4Expr expr;
+    int first;                  // statement indexes
+    int last;
+    int count;
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "cse";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    this.program = program;
+    if (program.statements instanceof ArrayList)
+      list((ArrayList<S4Node>)program.statements);
+    else
+      program.statements =
+        list(new ArrayList<S4Node>(program.statements));
+  }
+  //-----------------------------------------
+  private ArrayList<S4Node> list(ArrayList<S4Node> list)
+  {
+    int start = 0;
+    for (int i = 0; i <= list.size(); i++)
+      if (i == list.size() || !simple(list.get(i)))
+      {
+        i += region(list, start, i);
+        if (i < list.size())
+          statement(list.get(i));
+        start = i + 1;
+      }
+    return list;
+  }
+  //-----------------------------------------
+  private void statement(S4Node s)
+  {
+    if (s instanceof S4Block)
+      list(((S4Block)s).statements);
+    else
+      if (s instanceof S4If)
+      {
+        S4If n = (S4If)s;
+        n.condition = dupes(n.condition);
+        statement(n.thenBody);
+        if (n.elseBody != null)
+          statement(n.elseBody);
+      }
+      else
+        if (s instanceof S4While)
+        {
+          S4While n = (S4While)s;
+          if (n.condition != null)
+            n.condition = dupes(n.condition);
+          statement(n.body);
+        }
+        else
+          if (s instanceof S4Do)
+          {
+            S4Do n = (S4Do)s;
+            statement(n.body);
+            if (n.condition != null)
+              n.condition = dupes(n.condition);
+          }
+  }
+  //-----------------------------------------
+  private static boolean simple(S4Node s)
+  {
+    return s instanceof S4Assign || s instanceof S4Print ||
+      s instanceof S4Readint;
+  }
+  //-----------------------------------------
+  // Eliminate common subexpressions in the region of
+  // list from start up to end.  Returns the number of
+  // statements added to the region.
+  //
+  private int region(ArrayList<S4Node> list, int start,
+      int end)
+  {
+    number(list, start, end);
+    for (int i = start; i < end; i++)
+    {
+      S4Node s = list.get(i);
+      if (s instanceof S4Assign)
+        ((S4Assign)s).value = dupes(((S4Assign)s).value);
+      else
+        if (s instanceof S4Print && ((S4Print)s).value != null)
+          ((S4Print)s).value = dupes(((S4Print)s).value);
+    }
+
+    int added = 0;
+    while (true)
+    {
+      Group best = null;
+      int bestSaving = 0;
+      for (Group g : groups(list, start, end + added))
+      {
+        int size = S4SimplifyPass.size(g.expr);
+        int saving = g.count * size - (size + 2 + g.count);
+        if (saving > bestSaving)
+        {
+          best = g;
+          bestSaving = saving;
+        }
+      }
+      if (best == null)
+        return added;
+
+      String temp = program.newTemp();
+      temps++;
+      for (int i = best.first; i <= best.last; i++)
+      {
+        S4Node s = list.get(i);
+        if (s instanceof S4Assign)
+          ((S4Assign)s).value =
+            replace(((S4Assign)s).value, best.expr, temp);
+        else
+          if (s instanceof S4Print &&
+              ((S4Print)s).value != null)
+            ((S4Print)s).value =
+              replace(((S4Print)s).value, best.expr, temp);
+      }
+      S4Node s = list.get(best.first);
+      list.add(best.first, new S4Assign(s.line,
+            new String[] {temp}, best.expr.copy()));
+      added++;
+      saved += bestSaving;
+    }
+  }
+  //-----------------------------------------
+  // Value number the region of list from start up to
+  // end, replacing each expression whose value a
+  // variable holds with a load of it.
+  //
+  private void number(ArrayList<S4Node> list, int start,
+      int end)
+  {
+    numbers = new HashMap<String, Integer>();
+    values = new HashMap<String, Integer>();
+    holder = new HashMap<Integer, String>();
+    next = 0;
+    for (int i = start; i < end; i++)
+    {
+      S4Node s = list.get(i);
+      if (s instanceof S4Assign)
+      {
+        S4Assign n = (S4Assign)s;
+        n.value = held(n.value);
+        int v = valueNumber(n.value);
+        for (String t : n.target)
+          assign(t, v);
+      }
+      else
+        if (s instanceof S4Print && ((S4Print)s).value != null)
+          ((S4Print)s).value = held(((S4Print)s).value);
+        else
+          if (s instanceof S4Readint)
+            assign(((S4Readint)s).name, next++);
+    }
+  }
+  //-----------------------------------------
+  // Variable name now has value number v.
+  //
+  private void assign(String name, int v)
+  {
+    Integer old = numbers.get(name);
+    if (old != null && name.equals(holder.get(old)))
+      holder.remove(old);
+    numbers.put(name, v);
+    if (!holder.containsKey(v))
+      holder.put(v, name);
+  }
+  //-----------------------------------------
+  // The value number of e.  A variable not yet seen in
+  // the region gets a new one, and holds it.
+  //
+  private int valueNumber(S4Expr e)
+  {
+    String k;
+    if (e instanceof S4Var)
+    {
+      String name = ((S4Var)e).name;
+      Integer v = numbers.get(name);
+      if (v != null)
+        return v;
+      v = next++;
+      assign(name, v);
+      return v;
+    }
+    if (e instanceof S4Const)
+      k = ((S4Const)e).image;
+    else
+      if (e instanceof S4Neg)
+        k = "neg " + valueNumber(((S4Neg)e).operand);
+      else
+        if (e instanceof S4Binary)
+        {
+          S4Binary b = (S4Binary)e;
+          int l = valueNumber(b.left);
+          int r = b.right instanceof S4Dupe ? l :
+            valueNumber(b.right);
+          if ((b.instruction == S4Op.ADD ||
+                b.instruction == S4Op.MULT) && r < l)
+          {
+            int t = l;
+            l = r;
+            r = t;
+          }
+          k = b.instruction.mnemonic + " " + l + " " + r;
+        }
+        else
+          return next++;
+    Integer v = values.get(k);
+    if (v == null)
+    {
+      v = next++;
+      values.put(k, v);
+    }
+    return v;
+  }
+  //-----------------------------------------
+  // e with each largest subexpression, not a leaf,
+  // whose value a variable holds replaced by a load of
+  // that variable.
+  //
+  private S4Expr held(S4Expr e)
+  {
+    if (e instanceof S4Neg || e instanceof S4Binary)
+    {
+      String h = holder.get(valueNumber(e));
+      if (h != null)
+      {
+        copies++;
+        saved += S4SimplifyPass.size(e) - 1;
+        return new S4Var(h);
+      }
+    }
+    if (e instanceof S4Neg)
+      ((S4Neg)e).operand = held(((S4Neg)e).operand);
+    else
+      if (e instanceof S4Binary)
+      {
+        S4Binary b = (S4Binary)e;
+        b.left = held(b.left);
+        if (!(b.right instanceof S4Dupe))
+          b.right = held(b.right);
+      }
+    return e;
+  }
+  //-----------------------------------------
+  // The groups of copies of the same expression in the
+  // region of list from start up to end: a group ends
+  // where one of its variables is assigned.
+  //
+  private static Collection<Group> groups(
+      ArrayList<S4Node> list, int start, int end)
+  {
+    HashMap<String, Group> open = new HashMap<String, Group>();
+    ArrayList<Group> all = new ArrayList<Group>();
+    for (int i = start; i < end; i++)
+    {
+      S4Node s = list.get(i);
+      S4Expr e = s instanceof S4Assign ?
+        ((S4Assign)s).value : s instanceof S4Print ?
+        ((S4Print)s).value : null;
+      if (e != null)
+        collect(e, i, open, all);
+
+      // close the groups that use what s assigns
+      String[] target = s instanceof S4Assign ?
+        ((S4Assign)s).target : s instanceof S4Readint ?
+        new String[] {((S4Readint)s).name} : new String[0];
+      Iterator<Group> it = open.values().iterator();
+      while (it.hasNext())
+        if (uses(it.next().expr, target))
+          it.remove();
+    }
+    return all;
+  }
+  //-----------------------------------------
+  // Add the candidate subexpressions of e, found in
+  // statement i, to their groups.
+  //
+  private static void collect(S4Expr e, int i,
+      HashMap<String, Group> open, ArrayList<Group> all)
+  {
+    if (e instanceof S4Neg)
+      collect(((S4Neg)e).operand, i, open, all);
+    else
+      if (e instanceof S4Binary)
+      {
+        collect(((S4Binary)e).left, i, open, all);
+        collect(((S4Binary)e).right, i, open, all);
+      }
+      else
+        return;                 // a leaf is no candidate
+
+    String k = key(e);
+    Group g = open.get(k);
+    if (g == null)
+    {
+      g = new Group();
+      g.expr = e;
+      g.first = i;
+      open.put(k, g);
+      all.add(g);
+    }
+    g.last = i;
+    g.count++;
+  }
+  //-----------------------------------------
+  // A string that is the same for the same expression.
+  //
+  private static String key(S4Expr e)
+  {
+    if (e instanceof S4Const)
+      return ((S4Const)e).image;
+    if (e instanceof S4Var)
+      return ((S4Var)e).name;
+    if (e instanceof S4Neg)
+      return "(-" + key(((S4Neg)e).operand) + ")";
+    if (e instanceof S4Binary)
+      return "(" + key(((S4Binary)e).left) + " " +
+        ((S4Binary)e).instruction.mnemonic + " " +
+        key(((S4Binary)e).right) + ")";
+    return "^";
+  }
+  //-----------------------------------------
+  // Does e use any of the variables in names?
+  //
+  private static boolean uses(S4Expr e, String[] names)
+  {
+    if (e instanceof S4Var)
+    {
+      for (String name : names)
+        if (name.equals(((S4Var)e).name))
+          return true;
+      return false;
+    }
+    if (e instanceof S4Neg)
+      return uses(((S4Neg)e).operand, names);
+    if (e instanceof S4Binary)
+      return uses(((S4Binary)e).left, names) ||
+        uses(((S4Binary)e).right, names);
+    return false;
+  }
+  //-----------------------------------------
+  // e with each copy of x replaced by a load of temp.
+  //
+  private static S4Expr replace(S4Expr e, S4Expr x,
+      String temp)
+  {
+    if (S4SimplifyPass.same(e, x))
+      return new S4Var(temp);
+    if (e instanceof S4Neg)
+      ((S4Neg)e).operand =
+        replace(((S4Neg)e).operand, x, temp);
+    else
+      if (e instanceof S4Binary)
+      {
+        S4Binary b = (S4Binary)e;
+        b.left = replace(b.left, x, temp);
+        b.right = replace(b.right, x, temp);
+      }
+    return e;
+  }
+  //-----------------------------------------
+  // e with each E op E, E not a leaf, rewritten to use
+  // dupe.
+  //
+  private S4Expr dupes(S4Expr e)
+  {
+    if (e instanceof S4Neg)
+      ((S4Neg)e).operand = dupes(((S4Neg)e).operand);
+    else
+      if (e instanceof S4Binary)
+      {
+        S4Binary b = (S4Binary)e;
+        b.left = dupes(b.left);
+        b.right = dupes(b.right);
+        if (!(b.left instanceof S4Const) &&
+            !(b.left instanceof S4Var) &&
+            S4SimplifyPass.same(b.left, b.right))
+        {
+          saved += S4SimplifyPass.size(b.right) - 1;
+          dupes++;
+          b.right = new S4Dupe();
+        }
+      }
+    return e;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "cse", "count");
+    out.printf("%-12s %10d%n", "temps", temps);
+    out.printf("%-12s %10d%n", "dupes", dupes);
+    out.printf("%-12s %10d%n", "copies", copies);
+    out.printf("%-12s %10d%n", "saved", saved);
+  }
+}                              // end of S4CsePass class
+//======================================================
+// Dead store elimination.  A backward liveness
+// analysis over the tree finds the variables whose
+// values may still be read at each point; a store to a
+// variable that is not live is dead.  A dead target is
+// dropped from a cascaded assignment, and an assignment
+// with no live target goes away entirely, unless its
+// expression divides (and so may fail).  readint is
+// never removed: it consumes input.
+//
+// Liveness around a loop is found by iterating on the
+// loop's body until the set live at its test stops
+// growing.  Nothing is live at the end of the program,
+// since variables are never seen after halt.  Removing
+// a store can make others dead, so the whole analysis
+// is repeated until nothing changes.
+//
+class S4DeadStorePass implements S4Pass
+{
+  private HashMap<String, Integer> index;
+  private int removed;          // assignments removed
+  private int targets;          // cascade targets removed
+  private boolean changed;
+  //-----------------------------------------
+  public String getName()
+  {
+    return "dse";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    index = new HashMap<String, Integer>();
+    do
+    {
+      changed = false;
+      list(program.statements, new BitSet(), true);
+    } while (changed);
+  }
+  //-----------------------------------------
+  // Turn live, the variables live after list, into
+  // those live before it.  If remove is true, dead
+  // assignments are removed as well.
+  //
+  private void list(List<S4Node> list, BitSet live,
+      boolean remove)
+  {
+    int dead = 0;
+    for (int i = list.size() - 1; i >= 0; i--)
+      if (statement(list.get(i), live, remove))
+      {
+        list.set(i, null);
+        dead++;
+      }
+    if (dead > 0)
+    {
+      int n = 0;
+      for (int i = 0; i < list.size(); i++)
+        if (list.get(i) != null)
+          list.set(n++, list.get(i));
+      list.subList(n, list.size()).clear();
+    }
+  }
+  //-----------------------------------------
+  // Turn live, the variables live after s, into those
+  // live before it.  Returns true if s is a dead
+  // assignment to be removed.
+  //
+  private boolean statement(S4Node s, BitSet live,
+      boolean remove)
+  {
+    if (s instanceof S4Assign)
+      return assign((S4Assign)s, live, remove);
+    if (s instanceof S4Readint)
+      live.clear(number(((S4Readint)s).name));
+    else
+      if (s instanceof S4Print)
+        uses(((S4Print)s).value, live);
+      else
+        if (s instanceof S4Block)
+          list(((S4Block)s).statements, live, remove);
+        else
+          if (s instanceof S4If)
+          {
+            S4If n = (S4If)s;
+            BitSet t = (BitSet)live.clone();
+            n.thenBody = body(n.thenBody, t, remove);
+            if (n.elseBody != null)
+              n.elseBody = body(n.elseBody, live, remove);
+            live.or(t);
+            uses(n.condition, live);
+          }
+          else
+            if (s instanceof S4While || s instanceof S4Do)
+              loop(s, live, remove);
+    return false;
+  }
+  //-----------------------------------------
+  // statement for a loop or if body, which is replaced
+  // by an empty block if it is removed.
+  //
+  private S4Node body(S4Node s, BitSet live,
+      boolean remove)
+  {
+    if (!statement(s, live, remove))
+      return s;
+    return new S4Block(s.line, new ArrayList<S4Node>());
+  }
+  //-----------------------------------------
+  private boolean assign(S4Assign n, BitSet live,
+      boolean remove)
+  {
+    if (remove)
+    {
+      int k = 0;
+      for (String t : n.target)
+        if (live.get(number(t)))
+          k++;
+      if (k == 0 && S4SimplifyPass.pure(n.value))
+      {
+        removed++;
+        changed = true;
+        return true;
+      }
+      if (k > 0 && k < n.target.length)
+      {
+        String[] target = new String[k];
+        k = 0;
+        for (String t : n.target)
+          if (live.get(number(t)))
+            target[k++] = t;
+        targets += n.target.length - k;
+        n.target = target;
+        changed = true;
+      }
+    }
+    for (String t : n.target)
+      live.clear(number(t));
+    uses(n.value, live);
+    return false;
+  }
+  //-----------------------------------------
+  // A while loop (test first) or do loop (body first).
+  //
+  private void loop(S4Node s, BitSet live, boolean remove)
+  {
+    boolean testFirst = s instanceof S4While;
+    S4Node body = testFirst ?
+      ((S4While)s).body : ((S4Do)s).body;
+    S4Expr condition = testFirst ?
+      ((S4While)s).condition : ((S4Do)s).condition;
+
+    // live at the test: what the test reads, what is
+    // live after the loop if the test can end it, and
+    // what is live at the top of the body
+    BitSet exit = new BitSet();
+    if (condition != null)
+    {
+      exit.or(live);
+      uses(condition, exit);
+    }
+    BitSet test = (BitSet)exit.clone();
+    BitSet top;
+    while (true)
+    {
+      top = (BitSet)test.clone();
+      statement(body, top, false);
+      BitSet next = (BitSet)exit.clone();
+      next.or(top);
+      if (next.equals(test))
+        break;
+      test = next;
+    }
+
+    if (remove)
+    {
+      body = body(body, (BitSet)test.clone(), true);
+      if (testFirst)
+        ((S4While)s).body = body;
+      else
+        ((S4Do)s).body = body;
+    }
+    live.clear();
+    live.or(testFirst ? test : top);
+  }
+  //-----------------------------------------
+  // Add the variables e reads to live.
+  //
+  private void uses(S4Expr e, BitSet live)
+  {
+    if (e instanceof S4Var)
+      live.set(number(((S4Var)e).name));
+    else
+      if (e instanceof S4Neg)
+        uses(((S4Neg)e).operand, live);
+      else
+        if (e instanceof S4Binary)
+        {
+          uses(((S4Binary)e).left, live);
+          uses(((S4Binary)e).right, live);
+        }
+  }
+  //-----------------------------------------
+  // The bit number of a variable.
+  //
+  private int number(String name)
+  {
+    Integer i = index.get(name);
+    if (i == null)
+    {
+      i = index.size();
+      index.put(name, i);
+    }
+    return i;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "dse", "count");
+    out.printf("%-12s %10d%n", "assignments", removed);
+    out.printf("%-12s %10d%n", "targets", targets);
+  }
+}                        // end of S4DeadStorePass class
+//======================================================
+// Enter every variable in the symbol table, in order
+// of first appearance in the source.  In parallel
+// mode, parts of the top-level statement list fill
+// their own tables, which are then entered into the
+// program's table part by part, in order; that gives
+// the same order as a sequential walk.
+//
+class S4SymbolPass extends S4Walker implements S4Pass
+{
+  private S4SymTab st;
+  //-----------------------------------------
+  public String getName()
+  {
+    return "symbols";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    List<S4Node> statements = program.statements;
+    if (!program.parallel)
+    {
+      enter(statements, program.st);
+      return;
+    }
+
+    int n = statements.size();
+    int parts = S4Parallel.partCount(n);
+    S4SymbolTask[] task = new S4SymbolTask[parts];
+    for (int i = 0; i < parts; i++)
+      task[i] = new S4SymbolTask(statements.subList(
+            S4Parallel.partStart(i, parts, n),
+            S4Parallel.partStart(i + 1, parts, n)));
+    ForkJoinTask.invokeAll(task);
+
+    for (int i = 0; i < parts; i++)
+    {
+      S4SymTab part = task[i].join();
+      for (int j = 0; j < part.getSize(); j++)
+        program.st.enter(part.getSymbol(j));
+    }
+  }
+  //-----------------------------------------
+  public void enter(List<S4Node> statements, 
+      S4SymTab st)
+  {
+    this.st = st;
+    walk(statements);
+  }
+  //-----------------------------------------
+  public Void visitVar(S4Var n)
+  {
+    st.enter(n.name);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitAssign(S4Assign n)
+  {
+    for (int i = 0; i < n.target.length; i++)
+      st.enter(n.target[i]);
+    return super.visitAssign(n);
+  }
+  //-----------------------------------------
+  public Void visitReadint(S4Readint n)
+  {
+    st.enter(n.name);
+    return null;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+  }
+}                           // end of S4SymbolPass class
+//======================================================
+// Fill a symbol table for one part of the top-level
+// statement list.
+//
+class S4SymbolTask extends RecursiveTask<S4SymTab>
+{
+  private static final long serialVersionUID = 1L;
+  private List<S4Node> statements;
+  //-----------------------------------------
+  public S4SymbolTask(List<S4Node> statements)
+  {
+    this.statements = statements;
+  }
+  //-----------------------------------------
+  protected S4SymTab compute()
+  {
+    S4SymTab st = new S4SymTab();
+    new S4SymbolPass().enter(statements, st);
+    return st;
+  }
+}                           // end of S4SymbolTask class
+//======================================================
+// Generate code for the program with S4CodeGen,
+// placing the source listing ahead of each statement.
+// In parallel mode, parts of the top-level statement
+// list are generated by separate fork/join tasks into
+// their own code generators and then appended in
+// order.  Each part gets the listing entries up to its
+// last statement and a label range that starts where
+// the previous part's ends, so the output is the same
+// as a sequential compile.
+//
+class S4EmitPass implements S4Pass, S4Visitor<Void>
+{
+  private S4CodeGen cg;
+  private S4Listing listing;
+  //-----------------------------------------
+  public String getName()
+  {
+    return "emit";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    List<S4Node> statements = program.statements;
+    if (!program.parallel)
+      emit(statements, program.cg, program.listing);
+    else
+    {
+      int n = statements.size();
+      int parts = S4Parallel.partCount(n);
+      S4EmitTask[] task = new S4EmitTask[parts];
+      int label = 0;
+      for (int i = 0; i < parts; i++)
+      {
+        List<S4Node> part = statements.subList(
+            S4Parallel.partStart(i, parts, n),
+            S4Parallel.partStart(i + 1, parts, n));
+        task[i] = new S4EmitTask(part, 
+            new S4CodeGen(program.st, label),
+            program.listing.split(lastLine(part)));
+        label += S4LabelCounter.count(part);
+      }
+      ForkJoinTask.invokeAll(task);
+      for (int i = 0; i < parts; i++)
+        program.cg.append(task[i].join());
+    }
+
+    cg = program.cg;
+    listing = program.listing;
+    listTo(Integer.MAX_VALUE);
+    cg.endCode();
+  }
+  //-----------------------------------------
+  // Emit code for statements, with their listing.
+  //
+  public void emit(List<S4Node> statements, 
+      S4CodeGen cg, S4Listing listing)
+  {
+    this.cg = cg;
+    this.listing = listing;
+    for (S4Node s : statements)
+      statement(s);
+  }
+  //-----------------------------------------
+  // The line of the last statement (in emission
+  // order) in statements, or 0 if there is none.
+  //
+  private static int lastLine(List<S4Node> statements)
+  {
+    if (statements.isEmpty())
+      return 0;
+    S4Node s = statements.get(statements.size() - 1);
+    while (true)
+      if (s instanceof S4While)
+        s = ((S4While)s).body;
+      else
+        if (s instanceof S4Do)
+          s = ((S4Do)s).body;
+        else
+          if (s instanceof S4If)
+            s = ((S4If)s).elseBody != null ? 
+              ((S4If)s).elseBody : ((S4If)s).thenBody;
+          else
+            if (s instanceof S4Block &&
+                !((S4Block)s).statements.isEmpty())
+            {
+              ArrayList<S4Node> list = 
+                ((S4Block)s).statements;
+              s = list.get(list.size() - 1);
+            }
+            else
+              return s.line;
+  }
+  //-----------------------------------------
+  private void statement(S4Node s)
+  {
+    listTo(s.line);
+    s.accept(this);
+  }
+  //-----------------------------------------
+  // Emit the listing entries up through lineNumber.
+  //
+  private void listTo(int lineNumber)
+  {
+    while (listing.ready(lineNumber))
+      cg.emitComment(listing.take());
+  }
+  //-----------------------------------------
+  public Void visitConst(S4Const n)
+  {
+    cg.emitConstant(S4Op.PWC, n.image);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitVar(S4Var n)
+  {
+    cg.emitSymbol(S4Op.P, n.name);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitNeg(S4Neg n)
+  {
+    n.operand.accept(this);
+    cg.emitInstruction(S4Op.NEG);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitBinary(S4Binary n)
+  {
+    n.left.accept(this);
+    n.right.accept(this);
+    cg.emitInstruction(n.instruction);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitDupe(S4Dupe n)
+  {
+    cg.emitInstruction(S4Op.DUPE);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitAssign(S4Assign n)
+  {
+    for (int i = 0; i < n.target.length; i++)
+      cg.emitSymbol(S4Op.PC, n.target[i]);
+    n.value.accept(this);
+    for (int i = 1; i < n.target.length; i++)
+    {
+      cg.emitInstruction(S4Op.DUPE);
+      cg.emitInstruction(S4Op.ROT);
+      cg.emitInstruction(S4Op.STAV);
+    }
+    cg.emitInstruction(S4Op.STAV);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitPrint(S4Print n)
+  {
+    if (n.value != null)
+    {
+      n.value.accept(this);
+      cg.emitInstruction(S4Op.DOUT);
+    }
+    else
+      if (n.string != null)
+      {
+        cg.emitString(S4Op.PC, n.string);
+        cg.emitInstruction(S4Op.SOUT);
+      }
+    if (n.newline)
+    {
+      cg.emitChar(S4Op.PC, '\n');
+      cg.emitInstruction(S4Op.AOUT);
+    }
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitReadint(S4Readint n)
+  {
+    cg.emitSymbol(S4Op.PC, n.name);
+    cg.emitInstruction(S4Op.DIN);
+    cg.emitInstruction(S4Op.STAV);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitBlock(S4Block n)
+  {
+    for (S4Node s : n.statements)
+      statement(s);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitWhile(S4While n)
+  {
+    int label1 = cg.getLabel();
+    cg.emitLabel(label1);
+    if (n.condition == null)
+    {
+      statement(n.body);
+      cg.emitLabelRef(S4Op.JA, label1);
+      return null;
+    }
+    n.condition.accept(this);
+    int label2 = cg.getLabel();
+    cg.emitLabelRef(S4Op.JZ, label2);
+    statement(n.body);
+    cg.emitLabelRef(S4Op.JA, label1);
+    cg.emitLabel(label2);
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitDo(S4Do n)
+  {
+    int label1 = cg.getLabel();
+    cg.emitLabel(label1);
+    statement(n.body);
+    if (n.condition == null)
+      cg.emitLabelRef(S4Op.JA, label1);
+    else
+    {
+      n.condition.accept(this);
+      cg.emitLabelRef(S4Op.JNZ, label1);
+    }
+    return null;
+  }
+  //-----------------------------------------
+  public Void visitIf(S4If n)
+  {
+    n.condition.accept(this);
+    int label1 = cg.getLabel();
+    cg.emitLabelRef(S4Op.JZ, label1);
+    statement(n.thenBody);
+    if (n.elseBody != null)
+    {
+      int label2 = cg.getLabel();
+      cg.emitLabelRef(S4Op.JA, label2);
+      cg.emitLabel(label1);
+      statement(n.elseBody);
+      cg.emitLabel(label2);
+    }
+    else
+      cg.emitLabel(label1);
+    return null;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+  }
+}                             // end of S4EmitPass class
+//======================================================
+// Control-flow cleanup over the code buffer.  A jump
+// whose target is (after any labels) a ja is retargeted
+// to where that ja goes, following chains of them, and
+// every jump is aimed at the first of a run of adjacent
+// labels.  Then a ja to the next instruction is
+// removed, as is code after a ja or halt that no label
+// leads to, and labels nothing refers to are dropped.
+// Removals can expose more of the same, so the whole
+// thing is repeated until nothing changes.
+//
+// Comments and blank lines take no room in the
+// machine's memory, so they are looked through; a dw
+// does, so it ends a run of labels and is never
+// removed.
+//
+class S4JumpPass implements S4Pass
+{
+  private S4CodeGen cg;
+  private int[] where;          // index of each label
+  private int[] refs;           // references to each
+  private int retargeted;
+  private int removedJumps;
+  private int removedCode;
+  private int removedLabels;
+  //-----------------------------------------
+  public String getName()
+  {
+    return "jumps";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    cg = program.cg;
+    where = new int[cg.getLabelCount()];
+    refs = new int[cg.getLabelCount()];
+    boolean changed;
+    do
+    {
+      locate();
+      changed = thread();
+      count();
+      changed |= remove();
+    } while (changed);
+  }
+  //-----------------------------------------
+  private void locate()
+  {
+    Arrays.fill(where, -1);
+    for (int i = 0; i < cg.size(); i++)
+      if (cg.getOp(i) == S4Op.LABEL)
+        where[cg.getOperand(i)] = i;
+  }
+  //-----------------------------------------
+  private void count()
+  {
+    Arrays.fill(refs, 0);
+    for (int i = 0; i < cg.size(); i++)
+      if (isJump(cg.getOp(i)))
+        refs[cg.getOperand(i)]++;
+  }
+  //-----------------------------------------
+  private static boolean isJump(S4Op op)
+  {
+    return op == S4Op.JA || op == S4Op.JZ || op == S4Op.JNZ;
+  }
+  //-----------------------------------------
+  // Does op take no room in memory?
+  //
+  private static boolean isEmpty(S4Op op)
+  {
+    return op == S4Op.LABEL || op == S4Op.COMMENT ||
+      op == S4Op.BLANK;
+  }
+  //-----------------------------------------
+  // Index of the first instruction or dw at or after
+  // i, or size() if there is none.
+  //
+  private int next(int i)
+  {
+    while (i < cg.size() && isEmpty(cg.getOp(i)))
+      i++;
+    return i;
+  }
+  //-----------------------------------------
+  // The first label of the run of labels that label
+  // is in.
+  //
+  private int first(int label)
+  {
+    int f = label;
+    for (int i = where[label] - 1; 
+        i >= 0 && isEmpty(cg.getOp(i)); i--)
+      if (cg.getOp(i) == S4Op.LABEL)
+        f = cg.getOperand(i);
+    return f;
+  }
+  //-----------------------------------------
+  // Retarget the jumps.  Returns true if any changed.
+  //
+  private boolean thread()
+  {
+    boolean changed = false;
+    for (int i = 0; i < cg.size(); i++)
+    {
+      if (!isJump(cg.getOp(i)))
+        continue;
+      int label = cg.getOperand(i);
+      int target = label;
+      // follow ja chains; a cycle of them is a loop
+      // with no exit, and is left as it is
+      for (int steps = 0; steps < where.length; steps++)
+      {
+        if (where[target] < 0)
+          break;
+        int j = next(where[target]);
+        if (j == cg.size() || cg.getOp(j) != S4Op.JA)
+          break;
+        target = cg.getOperand(j);
+      }
+      target = first(target);
+      if (target != label)
+      {
+        cg.set(i, cg.getOp(i), S4CodeGen.LABEL, target);
+        retargeted++;
+        changed = true;
+      }
+    }
+    return changed;
+  }
+  //-----------------------------------------
+  // Remove jas to the next instruction, unreachable
+  // code, and unused labels.  Returns true if anything
+  // was removed.
+  //
+  private boolean remove()
+  {
+    int n = cg.size();
+    int end = 0;
+    boolean reachable = true;
+    for (int i = 0; i < n; i++)
+    {
+      S4Op op = cg.getOp(i);
+      boolean keep = true;
+      if (op == S4Op.LABEL)
+      {
+        keep = refs[cg.getOperand(i)] > 0;
+        if (keep)
+          reachable = true;
+        else
+          removedLabels++;
+      }
+      else
+        if (op == S4Op.DW)
+          reachable = true;
+        else
+          if (!isEmpty(op))
+          {
+            if (!reachable)
+            {
+              keep = false;
+              removedCode++;
+              if (isJump(op))
+                refs[cg.getOperand(i)]--;
+            }
+            else
+              if (op == S4Op.JA && toNext(i))
+              {
+                keep = false;
+                removedJumps++;
+                refs[cg.getOperand(i)]--;
+              }
+              else
+                if (op == S4Op.JA || op == S4Op.HALT)
+                  reachable = false;
+          }
+      if (keep)
+        cg.move(i, end++);
+    }
+    cg.truncate(end);
+    return end < n;
+  }
+  //-----------------------------------------
+  // Is the ja at i a jump to the instruction after it?
+  //
+  private boolean toNext(int i)
+  {
+    int w = where[cg.getOperand(i)];
+    return w > i && next(i + 1) > w;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "jumps", "count");
+    out.printf("%-12s %10d%n", "retargeted", retargeted);
+    out.printf("%-12s %10d%n", "jumps", removedJumps);
+    out.printf("%-12s %10d%n", "dead code", removedCode);
+    out.printf("%-12s %10d%n", "labels", removedLabels);
+  }
+}                             // end of S4JumpPass class
+//======================================================
+// Store-to-load forwarding on the buffered code.  After
+// a store, the value is still at hand, so a load of the
+// variable just stored need not go to memory:
+//
+//    pc x; pwc c; stav ... p x   the p becomes pwc c,
+//    if no label, jump, or store to x comes between;
+//
+//    pc x; E; stav ... p x       becomes pc x; E; dupe;
+//    rot; stav ..., which leaves the value on the stack
+//    for the next load of x, if the code between is
+//    straight-line, does not store to x, and leaves the
+//    stack as it found it without reaching below that,
+//    so the value is on top again at the load.
+//
+// The first costs nothing.  The second is one
+// instruction more for one load fewer: the dupe and rot
+// work on the stack, where the p they replace reads
+// memory.  (S4Cost, which weighs all instructions the
+// same, charges it with the extra instruction.)  Kept
+// values are not nested: a store between another store
+// and its load is not kept.  The address a stav stores to is found
+// by going back over the instructions that compute its
+// operands.  Comments and blank lines are looked
+// through.
+//
+class S4ForwardPass implements S4Pass
+{
+  private S4CodeGen cg;
+  private int constants;        // loads made pwc
+  private int dupes;            // loads made dupe; rot
+  //-----------------------------------------
+  public String getName()
+  {
+    return "forward";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    cg = program.cg;
+    int n = cg.size();
+    BitSet kept = new BitSet();   // stavs to keep value
+    BitSet drop = new BitSet();   // the loads they save
+    int last = -1;                // last load dropped
+    for (int s = 0; s < n; s++)
+    {
+      if (cg.getOp(s) != S4Op.STAV)
+        continue;
+      int a = address(s);
+      if (a < 0)
+        continue;
+      int x = cg.getOperand(a);
+      if (cg.getOp(s - 1) == S4Op.PWC)
+        forwardConstant(s, x);
+      else
+        if (s > last)
+        {
+          int i = nextLoad(s, x);
+          if (i >= 0)
+          {
+            kept.set(s);
+            drop.set(i);
+            last = i;
+          }
+        }
+    }
+    if (kept.isEmpty())
+      return;
+    dupes += kept.cardinality();
+
+    // make room for the dupes and rots, working from
+    // the end back so that nothing is overwritten
+    // before it is moved
+    int to = n + kept.cardinality();
+    cg.grow(to);
+    for (int i = n - 1; i >= 0; i--)
+      if (!drop.get(i))
+      {
+        cg.move(i, --to);
+        if (kept.get(i))
+        {
+          cg.set(--to, S4Op.ROT, S4CodeGen.NONE, 0);
+          cg.set(--to, S4Op.DUPE, S4CodeGen.NONE, 0);
+        }
+      }
+  }
+  //-----------------------------------------
+  // Replace loads of x after the stav at s, which
+  // stores the constant just before it, with that
+  // constant.
+  //
+  private void forwardConstant(int s, int x)
+  {
+    int n = cg.size();
+    for (int i = s + 1; i < n; i++)
+    {
+      S4Op op = cg.getOp(i);
+      if (op == S4Op.P && cg.getOperand(i) == x)
+      {
+        cg.set(i, S4Op.PWC, cg.getKind(s - 1),
+            cg.getOperand(s - 1));
+        constants++;
+      }
+      else
+        if (op == S4Op.STAV)
+        {
+          int a = address(i);
+          if (a < 0 || cg.getOperand(a) == x)
+            return;
+        }
+        else
+          if (op.ordinal() >= S4Op.JZ.ordinal() &&
+              op != S4Op.COMMENT && op != S4Op.BLANK)
+            return;             // jump, halt, label, dw
+    }
+  }
+  //-----------------------------------------
+  // Index of the pc that pushes the address the stav
+  // at s stores to, or -1 if it is not a pc of a
+  // variable in the same straight-line code.
+  //
+  private int address(int s)
+  {
+    int need = 2;               // operands still to find
+    for (int i = s - 1; i >= 0; i--)
+    {
+      S4Op op = cg.getOp(i);
+      int push = S4Cfg.pushes(op);
+      if (push < 0)
+        return -1;
+      if (push >= need)
+        return op == S4Op.PC && 
+          cg.getKind(i) == S4CodeGen.SYM ? i : -1;
+      need += S4Cfg.pops(op) - push;
+    }
+    return -1;
+  }
+  //-----------------------------------------
+  // Index of the next load of x after the stav at s, if
+  // a value left on the stack at s would be on top
+  // there, or -1.
+  //
+  private int nextLoad(int s, int x)
+  {
+    int n = cg.size();
+    int depth = 0;              // pushed since s
+    for (int i = s + 1; i < n; i++)
+    {
+      S4Op op = cg.getOp(i);
+      if (op == S4Op.P && cg.getOperand(i) == x)
+        return depth == 0 ? i : -1;
+      int push = S4Cfg.pushes(op);
+      if (push < 0)
+        return -1;              // label, jump, halt, dw
+      depth -= S4Cfg.pops(op);
+      if (depth < 0)
+        return -1;
+      depth += push;
+      if (op == S4Op.STAV)
+      {
+        int a = address(i);
+        if (a < 0 || cg.getOperand(a) == x)
+          return -1;
+      }
+    }
+    return -1;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "forward", "count");
+    out.printf("%-12s %10d%n", "constants", constants);
+    out.printf("%-12s %10d%n", "dupes", dupes);
+  }
+}                          // end of S4ForwardPass class
+//======================================================
+// Removes stores to variables that are dead, in the
+// buffered code, using S4Liveness.  This catches the
+// stores S4DeadStorePass cannot see in the tree, such
+// as those whose loads S4ForwardPass has replaced.  A
+// store goes only if it is pc x, instructions that
+// just compute a value (no division, input, or other
+// store), and stav.
+//
+class S4StorePass implements S4Pass
+{
+  private int removed;          // stores removed
+  //-----------------------------------------
+  public String getName()
+  {
+    return "stores";
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    S4CodeGen cg = program.cg;
+    S4Cfg cfg = new S4Cfg(cg);
+    S4Liveness liveness = new S4Liveness(cfg, program.st.getSize());
+    liveness.solve();
+
+    BitSet dead = new BitSet();
+    for (int b = 0; b < cfg.size(); b++)
+    {
+      int[] address = liveness.addresses(b);
+      BitSet live = (BitSet)liveness.getOut(b).clone();
+      for (int i = cfg.end(b) - 1; i >= cfg.start(b); i--)
+      {
+        S4Op op = cg.getOp(i);
+        if (op == S4Op.P && cg.getKind(i) == S4CodeGen.SYM)
+          live.set(cg.getOperand(i));
+        else
+          if (op == S4Op.STAV)
+          {
+            int a = address[i - cfg.start(b)];
+            if (a < 0)
+              continue;
+            int x = cg.getOperand(a);
+            if (!live.get(x) && computes(cg, a + 1, i))
+            {
+              for (int j = a; j <= i; j++)
+                if (cg.getOp(j).mnemonic != null)
+                  dead.set(j);
+              removed++;
+              i = a;
+            }
+            else
+              live.clear(x);
+          }
+      }
+    }
+    if (dead.isEmpty())
+      return;
+
+    int end = 0;
+    for (int i = 0; i < cg.size(); i++)
+      if (!dead.get(i))
+        cg.move(i, end++);
+    cg.truncate(end);
+  }
+  //-----------------------------------------
+  // Do the instructions from from up to to just
+  // compute a value?
+  //
+  private static boolean computes(S4CodeGen cg, int from,
+      int to)
+  {
+    for (int i = from; i < to; i++)
+      switch (cg.getOp(i))
+      {
+        case P: case PC: case PWC: case DUPE: case NEG:
+        case ADD: case SUB: case MULT: case COMMENT:
+        case BLANK:
+          break;
+        default:
+          return false;
+      }
+    return true;
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "stores", "count");
+    out.printf("%-12s %10d%n", "removed", removed);
+  }
+}                            // end of S4StorePass class
+//======================================================
+// Control-flow graph of the buffered code.  A basic
+// block starts at the first instruction, at a label
+// that follows code, and at code that follows a jump
+// or halt.  Comments, blank lines, and dws belong to
+// the block they are in but do nothing.  A block ends
+// in a ja (one successor: its target), a jz or jnz
+// (its target and the next block), a halt (none), or
+// runs into the next block.
+//
+// Successors and predecessors are kept in flat int
+// arrays, indexed through a start array per block, so
+// that a graph of a million instructions is a handful
+// of arrays rather than a million objects.
+//
+class S4Cfg
+{
+  private S4CodeGen cg;
+  private int count;            // blocks
+  private int[] start;          // first instruction of
+                                // each block, and size
+  private int[] last;           // last code of each, or -1
+  private int[] succStart;      // successors of block b
+  private int[] succ;           // are succ[succStart[b]]
+                                // to succ[succStart[b+1]]
+  private int[] predStart;      // and likewise
+  private int[] pred;           // predecessors
+  //-----------------------------------------
+  public S4Cfg(S4CodeGen cg)
+  {
+    this.cg = cg;
+    int n = cg.size();
+    int[] labelBlock = new int[cg.getLabelCount()];
+    start = new int[16];
+    last = new int[16];
+
+    boolean code = false;       // code in this block?
+    boolean jumped = false;     // after jump or halt?
+    for (int i = 0; i < n; i++)
+    {
+      S4Op op = cg.getOp(i);
+      if (op == S4Op.LABEL)
+      {
+        if (count == 0 || code)
+          newBlock(i);
+        code = jumped = false;
+        labelBlock[cg.getOperand(i)] = count - 1;
+      }
+      else
+        if (op.mnemonic != null && op != S4Op.DW)
+        {
+          if (count == 0 || jumped)
+          {
+            newBlock(i);
+            jumped = false;
+          }
+          last[count - 1] = i;
+          code = true;
+          jumped = op == S4Op.JA || op == S4Op.JZ ||
+            op == S4Op.JNZ || op == S4Op.HALT;
+        }
+    }
+    newBlock(n);                // start[count] is the end
+    count--;
+
+    // successors, at most two a block
+    succStart = new int[count + 1];
+    succ = new int[2 * count];
+    int k = 0;
+    for (int b = 0; b < count; b++)
+    {
+      succStart[b] = k;
+      S4Op op = last[b] < 0 ? null : cg.getOp(last[b]);
+      if (op == S4Op.JA || op == S4Op.JZ || op == S4Op.JNZ)
+        succ[k++] = labelBlock[cg.getOperand(last[b])];
+      if (op != S4Op.JA && op != S4Op.HALT && b + 1 < count)
+        succ[k++] = b + 1;
+    }
+    succStart[count] = k;
+
+    // predecessors, by counting then placing
+    predStart = new int[count + 1];
+    for (int j = 0; j < k; j++)
+      predStart[succ[j] + 1]++;
+    for (int b = 0; b < count; b++)
+      predStart[b + 1] += predStart[b];
+    pred = new int[k];
+    int[] fill = Arrays.copyOf(predStart, count);
+    for (int b = 0; b < count; b++)
+      for (int j = succStart[b]; j < succStart[b + 1]; j++)
+        pred[fill[succ[j]]++] = b;
+  }
+  //-----------------------------------------
+  private void newBlock(int i)
+  {
+    if (count == start.length)
+    {
+      start = Arrays.copyOf(start, 2 * count);
+      last = Arrays.copyOf(last, 2 * count);
+    }
+    start[count] = i;
+    last[count++] = -1;
+  }
+  //-----------------------------------------
+  public S4CodeGen getCode()
+  {
+    return cg;
+  }
+  //-----------------------------------------
+  // Number of blocks.  Block 0 is the entry.
+  //
+  public int size()
+  {
+    return count;
+  }
+  //-----------------------------------------
+  // Index of the first instruction in block b.
+  //
+  public int start(int b)
+  {
+    return start[b];
+  }
+  //-----------------------------------------
+  // One more than the index of the last instruction
+  // in block b.
+  //
+  public int end(int b)
+  {
+    return start[b + 1];
+  }
+  //-----------------------------------------
+  public int successorCount(int b)
+  {
+    return succStart[b + 1] - succStart[b];
+  }
+  //-----------------------------------------
+  public int successor(int b, int k)
+  {
+    return succ[succStart[b] + k];
+  }
+  //-----------------------------------------
+  public int predecessorCount(int b)
+  {
+    return predStart[b + 1] - predStart[b];
+  }
+  //-----------------------------------------
+  public int predecessor(int b, int k)
+  {
+    return pred[predStart[b] + k];
+  }
+  //-----------------------------------------
+  // The blocks in reverse postorder of a depth-first
+  // walk from the entry, followed by the blocks the
+  // walk does not reach.  A forward problem converges
+  // fastest visiting blocks in this order, a backward
+  // one in its reverse.
+  //
+  public int[] reversePostorder()
+  {
+    int[] order = new int[count];
+    int k = count;
+    BitSet seen = new BitSet(count);
+    int[] stack = new int[count];     // blocks
+    int[] next = new int[count];      // next successor
+    for (int root = 0; root < count; root++)
+    {
+      if (seen.get(root))
+        continue;
+      int sp = 0;
+      stack[sp] = root;
+      next[sp++] = 0;
+      seen.set(root);
+      while (sp > 0)
+      {
+        int b = stack[sp - 1];
+        if (next[sp - 1] < successorCount(b))
+        {
+          int s = successor(b, next[sp - 1]++);
+          if (!seen.get(s))
+          {
+            seen.set(s);
+            stack[sp] = s;
+            next[sp++] = 0;
+          }
+        }
+        else
+        {
+          order[--k] = b;
+          sp--;
+        }
+      }
+    }
+    return order;
+  }
+  //-----------------------------------------
+  // Values op pushes onto the stack, or -1 if op is
+  // not an instruction that runs in straight-line code.
+  //
+  public static int pushes(S4Op op)
+  {
+    switch (op)
+    {
+      case P: case PC: case PWC: case DIN: case NEG:
+      case ADD: case SUB: case MULT: case DIV:
+        return 1;
+      case DUPE:
+        return 2;
+      case ROT:
+        return 3;
+      case STAV: case DOUT: case AOUT: case SOUT:
+      case COMMENT: case BLANK:
+        return 0;
+      default:
+        return -1;
+    }
+  }
+  //-----------------------------------------
+  // Values op pops off the stack.
+  //
+  public static int pops(S4Op op)
+  {
+    switch (op)
+    {
+      case NEG: case DUPE: case DOUT: case AOUT:
+      case SOUT: case JZ: case JNZ:
+        return 1;
+      case ADD: case SUB: case MULT: case DIV: case STAV:
+        return 2;
+      case ROT:
+        return 3;
+      default:
+        return 0;
+    }
+  }
+}                                  // end of S4Cfg class
+//======================================================
+// Iterative dataflow analysis over an S4Cfg, for
+// problems whose facts are bits (variables, stores,
+// and the like) and whose blocks each generate some
+// facts and kill others.  A subclass says which way
+// the problem goes, whether facts meet by union (may
+// problems) or intersection (must problems), what
+// holds at the boundary (the entry for a forward
+// problem, the exits for a backward one), and each
+// block's gen and kill sets.
+//
+// solve() uses a worklist seeded in reverse postorder
+// (or postorder, going backward), so a problem without
+// loops settles in one sweep, and each block is
+// revisited only when something it depends on changes.
+//
+abstract class S4Dataflow
+{
+  protected S4Cfg cfg;
+  protected int bits;           // facts per set
+  protected BitSet[] gen;
+  protected BitSet[] kill;
+  private BitSet[] in;
+  private BitSet[] out;
+  //-----------------------------------------
+  protected S4Dataflow(S4Cfg cfg, int bits)
+  {
+    this.cfg = cfg;
+    this.bits = bits;
+    gen = new BitSet[cfg.size()];
+    kill = new BitSet[cfg.size()];
+  }
+  //-----------------------------------------
+  protected abstract boolean isForward();
+  //-----------------------------------------
+  protected abstract boolean isUnion();
+  //-----------------------------------------
+  // What holds at the entry (forward) or the exits
+  // (backward).
+  //
+  protected abstract BitSet boundary();
+  //-----------------------------------------
+  // Fill in gen[b] and kill[b] for every block b.
+  //
+  protected abstract void local();
+  //-----------------------------------------
+  // Facts that hold at the start of block b.
+  //
+  public BitSet getIn(int b)
+  {
+    return in[b];
+  }
+  //-----------------------------------------
+  // Facts that hold at the end of block b.
+  //
+  public BitSet getOut(int b)
+  {
+    return out[b];
+  }
+  //-----------------------------------------
+  public void solve()
+  {
+    local();
+    int n = cfg.size();
+    boolean forward = isForward();
+    BitSet top = new BitSet(bits);
+    if (!isUnion())
+      top.set(0, bits);
+
+    // meet is the set a block's transfer starts from
+    // (in going forward, out going backward), and
+    // result the set it ends with
+    BitSet[] meet = new BitSet[n];
+    BitSet[] result = new BitSet[n];
+    for (int b = 0; b < n; b++)
+      result[b] = (BitSet)top.clone();
+
+    int[] order = cfg.reversePostorder();
+    int[] queue = new int[n + 1];     // circular
+    int head = 0;
+    int tail = 0;
+    BitSet queued = new BitSet(n);
+    for (int j = 0; j < n; j++)
+    {
+      int b = forward ? order[j] : order[n - 1 - j];
+      queue[tail++] = b;
+      queued.set(b);
+    }
+
+    while (head != tail)
+    {
+      int b = queue[head];
+      head = head == n ? 0 : head + 1;
+      queued.clear(b);
+
+      int k = forward ? 
+        cfg.predecessorCount(b) : cfg.successorCount(b);
+      BitSet m = null;
+      if (forward ? b == 0 : k == 0)
+        m = (BitSet)boundary().clone();
+      for (int j = 0; j < k; j++)
+      {
+        BitSet r = result[forward ?
+          cfg.predecessor(b, j) : cfg.successor(b, j)];
+        if (m == null)
+          m = (BitSet)r.clone();
+        else
+          if (isUnion())
+            m.or(r);
+          else
+            m.and(r);
+      }
+      if (m == null)            // unreachable entry
+        m = (BitSet)top.clone();
+      meet[b] = m;
+
+      BitSet r = (BitSet)m.clone();
+      r.andNot(kill[b]);
+      r.or(gen[b]);
+      if (r.equals(result[b]))
+        continue;
+      result[b] = r;
+      k = forward ? 
+        cfg.successorCount(b) : cfg.predecessorCount(b);
+      for (int j = 0; j < k; j++)
+      {
+        int d = forward ?
+          cfg.successor(b, j) : cfg.predecessor(b, j);
+        if (!queued.get(d))
+        {
+          queued.set(d);
+          queue[tail] = d;
+          tail = tail == n ? 0 : tail + 1;
+        }
+      }
+    }
+    in = forward ? meet : result;
+    out = forward ? result : meet;
+  }
+}                            // end of S4Dataflow class
+//======================================================
+// Live variables: a variable is live at a point if
+// some path from there loads it before storing it.
+// Bits are symbol table indexes.  A stav whose address
+// cannot be traced to a pc of a variable kills
+// nothing.
+//
+class S4Liveness extends S4Dataflow
+{
+  //-----------------------------------------
+  public S4Liveness(S4Cfg cfg, int variables)
+  {
+    super(cfg, variables);
+  }
+  //-----------------------------------------
+  protected boolean isForward()
+  {
+    return false;
+  }
+  //-----------------------------------------
+  protected boolean isUnion()
+  {
+    return true;
+  }
+  //-----------------------------------------
+  protected BitSet boundary()
+  {
+    return new BitSet();        // nothing live at halt
+  }
+  //-----------------------------------------
+  protected void local()
+  {
+    S4CodeGen cg = cfg.getCode();
+    for (int b = 0; b < cfg.size(); b++)
+    {
+      BitSet g = new BitSet();
+      BitSet k = new BitSet();
+      int[] address = addresses(b);
+      for (int i = cfg.start(b); i < cfg.end(b); i++)
+      {
+        S4Op op = cg.getOp(i);
+        if (op == S4Op.P && cg.getKind(i) == S4CodeGen.SYM)
+        {
+          int x = cg.getOperand(i);
+          if (!k.get(x))
+            g.set(x);
+        }
+        else
+          if (op == S4Op.STAV && address[i - cfg.start(b)] >= 0)
+            k.set(cg.getOperand(address[i - cfg.start(b)]));
+      }
+      gen[b] = g;
+      kill[b] = k;
+    }
+  }
+  //-----------------------------------------
+  // For each stav in block b (by its offset in the
+  // block), the index of the pc that pushed the
+  // address it stores to, or -1 if that is not known.
+  // Found by tracking, for each value on the stack,
+  // the pc of a variable that pushed it.
+  //
+  public int[] addresses(int b)
+  {
+    S4CodeGen cg = cfg.getCode();
+    int from = cfg.start(b);
+    int[] address = new int[cfg.end(b) - from];
+    int[] stack = new int[16];
+    int sp = 0;
+    for (int i = from; i < cfg.end(b); i++)
+    {
+      S4Op op = cg.getOp(i);
+      address[i - from] = -1;
+      int pops = S4Cfg.pops(op);
+      int pushes = S4Cfg.pushes(op);
+      if (pushes < 0)
+        pushes = 0;
+      if (pops > sp)            // came in on the stack
+      {
+        sp = 0;
+        for (int j = 0; j < pushes; j++)
+          stack[sp++] = -1;
+        continue;
+      }
+      if (op == S4Op.STAV)
+        address[i - from] = stack[sp - 2];
+      if (sp + 3 > stack.length)
+        stack = Arrays.copyOf(stack, 2 * stack.length);
+      switch (op)
+      {
+        case PC:
+          stack[sp++] = cg.getKind(i) == S4CodeGen.SYM ?
+            i : -1;
+          break;
+        case DUPE:
+          stack[sp] = stack[sp - 1];
+          sp++;
+          break;
+        case ROT:               // a b c -> c a b
+          int c = stack[sp - 1];
+          stack[sp - 1] = stack[sp - 2];
+          stack[sp - 2] = stack[sp - 3];
+          stack[sp - 3] = c;
+          break;
+        default:
+          sp -= pops;
+          for (int j = 0; j < pushes; j++)
+            stack[sp++] = -1;
+      }
+    }
+    return address;
+  }
+}                               // end of S4Liveness class
+//======================================================
+// Peephole optimizer.  Instructions are copied down the
+// code buffer one at a time; after each one, the rules
+// are tried against the instructions just before it,
+// and a rule that matches rewrites them in place.  The
+// result of a rewrite is matched again, so rewrites
+// cascade (neg neg neg neg goes away entirely).  A
+// pattern never spans a label or any other pseudo-op.
+// Rules can be disabled by name, and each rule counts
+// the instructions it removes.
+//
+class S4PeepholePass implements S4Pass
+{
+  // The rule table.  pattern gives the instructions a
+  // rule matches, and constant the value a pwc in the
+  // pattern must push (ANY for any constant).  What a
+  // rule does when it matches is in rewrite(int).
+  private static final int ANY = Integer.MIN_VALUE;
+  private static final String[] ruleName =
+  {
+    "neg-neg", "pwc-neg", "add-zero", "sub-zero",
+    "mult-one", "div-one", "neg-add", "neg-sub"
+  };
+  private static final S4Op[][] pattern =
+  {
+    {S4Op.NEG, S4Op.NEG},         // -(-x)   -> x
+    {S4Op.PWC, S4Op.NEG},         // -c      -> pwc -c
+    {S4Op.PWC, S4Op.ADD},         // x + 0   -> x
+    {S4Op.PWC, S4Op.SUB},         // x - 0   -> x
+    {S4Op.PWC, S4Op.MULT},        // x * 1   -> x
+    {S4Op.PWC, S4Op.DIV},         // x / 1   -> x
+    {S4Op.NEG, S4Op.ADD},         // x + -y  -> x - y
+    {S4Op.NEG, S4Op.SUB}          // x - -y  -> x + y
+  };
+  private static final int[] constant =
+  {
+    0, ANY, 0, 0, 1, 1, 0, 0
+  };
+  private static final int RULE_NEG_NEG = 0;
+  private static final int RULE_PWC_NEG = 1;
+  private static final int RULE_NEG_ADD = 6;
+  private static final int RULE_NEG_SUB = 7;
+
+  private boolean[] enabled;
+  private int[] removed;
+  private S4CodeGen cg;
+  private int end;              // end of rewritten code
+  //-----------------------------------------
+  public S4PeepholePass()
+  {
+    enabled = new boolean[ruleName.length];
+    Arrays.fill(enabled, true);
+    removed = new int[ruleName.length];
+  }
+  //-----------------------------------------
+  public String getName()
+  {
+    return "peephole";
+  }
+  //-----------------------------------------
+  // Disable the rule with the given name.  Returns
+  // false if there is no such rule.
+  //
+  public boolean disableRule(String name)
+  {
+    for (int r = 0; r < ruleName.length; r++)
+      if (ruleName[r].equalsIgnoreCase(name))
+      {
+        enabled[r] = false;
+        return true;
+      }
+    return false;
+  }
+  //-----------------------------------------
+  public void run(S4Program program)
+  {
+    cg = program.cg;
+    int n = cg.size();
+    end = 0;
+    for (int i = 0; i < n; i++)
+    {
+      cg.move(i, end++);
+      boolean changed;
+      do
+      {
+        changed = false;
+        for (int r = 0; r < ruleName.length && !changed; r++)
+          if (enabled[r] && matches(r))
+          {
+            int before = end;
+            rewrite(r);
+            removed[r] += before - end;
+            changed = true;
+          }
+      } while (changed);
+    }
+    cg.truncate(end);
+  }
+  //-----------------------------------------
+  // Does rule r match the instructions that end at
+  // end?
+  //
+  private boolean matches(int r)
+  {
+    S4Op[] p = pattern[r];
+    int start = end - p.length;
+    if (start < 0)
+      return false;
+    for (int j = 0; j < p.length; j++)
+    {
+      int i = start + j;
+      if (cg.getOp(i) != p[j])
+        return false;
+      if (p[j] == S4Op.PWC)
+      {
+        if (cg.getKind(i) != S4CodeGen.CONST)
+          return false;
+        int c = cg.getOperand(i);
+        if (constant[r] == ANY ? 
+            c < -32767 || c > 32767 : c != constant[r])
+          return false;
+      }
+    }
+    return true;
+  }
+  //-----------------------------------------
+  private void rewrite(int r)
+  {
+    switch (r)
+    {
+      case RULE_PWC_NEG:
+        end--;
+        cg.set(end - 1, S4Op.PWC, S4CodeGen.CONST,
+            -cg.getOperand(end - 1));
+        break;
+      case RULE_NEG_ADD:
+        end--;
+        cg.set(end - 1, S4Op.SUB, S4CodeGen.NONE, 0);
+        break;
+      case RULE_NEG_SUB:
+        end--;
+        cg.set(end - 1, S4Op.ADD, S4CodeGen.NONE, 0);
+        break;
+      default:          // the pattern just goes away
+        end -= pattern[r].length;
+    }
+  }
+  //-----------------------------------------
+  public void report(PrintStream out)
+  {
+    out.printf("%-12s %10s%n", "rule", "removed");
+    for (int r = 0; r < ruleName.length; r++)
+      out.printf("%-12s %10s%n", ruleName[r],
+          enabled[r] ? Integer.toString(removed[r]) : "-");
+  }
+}                         // end of S4PeepholePass class
+//======================================================
+// Generate code for one part of the top-level
+// statement list.
+//
+class S4EmitTask extends RecursiveTask<S4CodeGen>
+{
+  private static final long serialVersionUID = 1L;
+  private List<S4Node> statements;
+  private S4CodeGen cg;
+  private S4Listing listing;
+  //-----------------------------------------
+  public S4EmitTask(List<S4Node> statements, 
+      S4CodeGen cg, S4Listing listing)
+  {
+    this.statements = statements;
+    this.cg = cg;
+    this.listing = listing;
+  }
+  //-----------------------------------------
+  protected S4CodeGen compute()
+  {
+    new S4EmitPass().emit(statements, cg, listing);
+    return cg;
+  }
+}                             // end of S4EmitTask class
+//======================================================
+// Counts the labels S4EmitPass allocates for a list of
+// statements.  It must allocate exactly as the emit
+// pass does.
+//
+class S4LabelCounter extends S4Walker
+{
+  private int count;
+  //-----------------------------------------
+  public static int count(List<S4Node> statements)
+  {
+    S4LabelCounter c = new S4LabelCounter();
+    c.walk(statements);
+    return c.count;
+  }
+  //-----------------------------------------
+  public Void visitWhile(S4While n)
+  {
+    count += n.condition != null ? 2 : 1;
+    return super.visitWhile(n);
+  }
+  //-----------------------------------------
+  public Void visitDo(S4Do n)
+  {
+    count++;
+    return super.visitDo(n);
+  }
+  //-----------------------------------------
+  public Void visitIf(S4If n)
+  {
+    count += n.elseBody != null ? 2 : 1;
+    return super.visitIf(n);
+  }
+}                         // end of S4LabelCounter class
+//======================================================
+// Writes the .a file.  Text is appended to a reusable
+// byte buffer that goes to the file's channel in large
+// blocks, so writing a line costs no format parsing
+// and no allocation.  As with PrintWriter, characters
+// are encoded in the platform's default charset and
+// lines end with the platform's line separator.  The
+// writer keeps track of the column (in characters) so
+// that fields can be padded.
+//
+class S4AsmWriter
+{
+  private static final Charset charset = 
+    Charset.defaultCharset();
+  private static final byte[] newline = 
+    System.lineSeparator().getBytes(charset);
+  // does the charset encode ASCII as itself?
+  private static final boolean asciiSafe = 
+    Arrays.equals(ascii("\t !09AZaz~"),
+      "\t !09AZaz~".getBytes(charset));
+
+  private FileChannel channel;
+  private byte[] buffer;
+  private int count;            // bytes in buffer
+  private int column;
+  //-----------------------------------------
+  public S4AsmWriter(String fileName) throws IOException
+  {
+    channel = new FileOutputStream(fileName).getChannel();
+    buffer = new byte[1 << 16];
+    count = 0;
+    column = 0;
+  }
+  //-----------------------------------------
+  // The bytes of s, which must be ASCII.
+  //
+  public static byte[] ascii(String s)
+  {
+    byte[] b = new byte[s.length()];
+    for (int i = 0; i < b.length; i++)
+      b[i] = (byte)s.charAt(i);
+    return b;
+  }
+  //-----------------------------------------
+  // Write preformatted ASCII text.
+  //
+  public void print(byte[] b)
+  {
+    if (count + b.length > buffer.length)
+      flush();
+    System.arraycopy(b, 0, buffer, count, b.length);
+    count += b.length;
+    column += b.length;
+  }
+  //-----------------------------------------
+  public void print(char c)
+  {
+    if (c >= 0x80 || !asciiSafe)
+    {
+      print(String.valueOf(c));
+      return;
+    }
+    if (count == buffer.length)
+      flush();
+    buffer[count++] = (byte)c;
+    column++;
+  }
+  //-----------------------------------------
+  public void print(String s)
+  {
+    int n = s.length();
+    if (count + n > buffer.length)
+      flush();
+    if (!asciiSafe || n > buffer.length)
+    {
+      encode(s);
+      return;
+    }
+    int start = count;
+    for (int i = 0; i < n; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x80)
+      {
+        count = start;
+        encode(s);
+        return;
+      }
+      buffer[count++] = (byte)c;
+    }
+    column += n;
+  }
+  //-----------------------------------------
+  // Write s in the slow way, through the charset.
+  //
+  private void encode(String s)
+  {
+    byte[] b = s.getBytes(charset);
+    flush();
+    if (b.length > buffer.length)
+      write(ByteBuffer.wrap(b));
+    else
+    {
+      System.arraycopy(b, 0, buffer, 0, b.length);
+      count = b.length;
+    }
+    column += s.length();
+  }
+  //-----------------------------------------
+  // Write v in decimal.
+  //
+  public void print(int v)
+  {
+    if (count + 11 > buffer.length)
+      flush();
+    long n = v;
+    if (n < 0)
+    {
+      buffer[count++] = '-';
+      column++;
+      n = -n;
+    }
+    int digits = 1;
+    for (long t = n; t >= 10; t /= 10)
+      digits++;
+    for (int i = count + digits - 1; i >= count; i--)
+    {
+      buffer[i] = (byte)('0' + n % 10);
+      n /= 10;
+    }
+    count += digits;
+    column += digits;
+  }
+  //-----------------------------------------
+  // Pad with blanks out to the given column.
+  //
+  public void padTo(int width)
+  {
+    while (column < width)
+      print(' ');
+  }
+  //-----------------------------------------
+  public void println()
+  {
+    if (count + newline.length > buffer.length)
+      flush();
+    System.arraycopy(newline, 0, buffer, count, 
+        newline.length);
+    count += newline.length;
+    column = 0;
+  }
+  //-----------------------------------------
+  public void println(String s)
+  {
+    print(String.valueOf(s));
+    println();
+  }
+  //-----------------------------------------
+  public void flush()
+  {
+    write(ByteBuffer.wrap(buffer, 0, count));
+    count = 0;
+  }
+  //-----------------------------------------
+  private void write(ByteBuffer b)
+  {
+    try
+    {
+      while (b.hasRemaining())
+        channel.write(b);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+  //-----------------------------------------
+  // Copy the whole of file fileName to the end of the
+  // output.
+  //
+  public void append(String fileName)
+  {
+    flush();
+    try
+    {
+      FileChannel in =
+        new FileInputStream(fileName).getChannel();
+      long n = in.size();
+      for (long done = 0; done < n; )
+        done += in.transferTo(done, n - done, channel);
+      in.close();
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+    column = 0;
+  }
+  //-----------------------------------------
+  public void close()
+  {
+    flush();
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+}                           // end of S4AsmWriter class
+//======================================================
+// Stack machine instructions, plus the pseudo-ops that
+// S4CodeGen keeps in its instruction buffer alongside
+// them: a label definition, a dw, a comment, and a
+// blank line.
+//
+enum S4Op
+{
+  P("p"), PC("pc"), PWC("pwc"), STAV("stav"), DUPE("dupe"),
+  ROT("rot"), NEG("neg"), ADD("add"), SUB("sub"),
+  MULT("mult"), DIV("div"), DOUT("dout"), AOUT("aout"),
+  SOUT("sout"), DIN("din"), JZ("jz"), JNZ("jnz"), JA("ja"),
+  HALT("halt"),
+  LABEL(null), DW("dw"), COMMENT(null), BLANK(null);
+
+  public final String mnemonic;
+  //-----------------------------------------
+  S4Op(String mnemonic)
+  {
+    this.mnemonic = mnemonic;
+  }
+}                                 // end of S4Op enum
+//======================================================
+// S4CodeGen appends the code to an int-coded
+// instruction buffer, three ints per instruction: the
+// opcode ordinal and operand kind packed together, the
+// operand, and (for a string dw) the string's number.
+// An operand is a symbol table index, a constant, a
+// label number, a character, a number in the pool of
+// string constants, or an index into a pool of text
+// (comments, strings, and constants whose source text
+// is not their canonical form).  Each distinct string
+// constant is pooled once (unless streaming, below)
+// and written, after the halt, as a dw labeled "^@S"
+// plus its number, numbered in order of first use; the
+// code refers to it by that label.  So no data sits among the instructions.  The
+// buffer is written out as .a text by flush, which
+// main calls after the last pass, so passes that run
+// after the emitter can inspect and rewrite the code.
+// Apart from growing the buffer, emitting an
+// instruction allocates nothing.
+//
+class S4CodeGen
+{
+  // operand kinds
+  public static final int NONE = 0;
+  public static final int SYM = 1;
+  public static final int CONST = 2;
+  public static final int LABEL = 3;
+  public static final int CHAR = 4;
+  public static final int TEXT = 5;
+  public static final int STRING = 6;
+
+  private static final S4Op[] ops = S4Op.values();
+
+  // preformatted text: each instruction's opcode field,
+  // padded as for an instruction with no operand (bare)
+  // and with one (withOperand), and the fixed parts of
+  // the pseudo-ops
+  private static final byte[][] bare = 
+    new byte[ops.length][];
+  private static final byte[][] withOperand = 
+    new byte[ops.length][];
+  private static final byte[] dw = 
+    S4AsmWriter.ascii(" dw        ");
+  private static final byte[] comment = 
+    S4AsmWriter.ascii("; ");
+  private static final byte[] labelPrefix = 
+    S4AsmWriter.ascii("@L");
+  private static final byte[] stringPrefix = 
+    S4AsmWriter.ascii("@S");
+  static
+  {
+    for (S4Op op : ops)
+      if (op.mnemonic != null)
+      {
+        String field = "          " + op.mnemonic + 
+          "    ".substring(Math.min(4, op.mnemonic.length()));
+        bare[op.ordinal()] = S4AsmWriter.ascii(field);
+        withOperand[op.ordinal()] = 
+          S4AsmWriter.ascii(field + "      ");
+      }
+  }
+
+  // with streaming on, the buffer is written out
+  // whenever it holds this many instructions
+  private static final int STREAM_BLOCK = 4096;
+
+  private S4AsmWriter outFile;
+  private S4SymTab st;
+  private int labelNumber;
+  private int[] code;           // the instruction buffer
+  private int size;             // instructions in code
+  private ArrayList<String> text;
+  private ArrayList<String> strings;     // string pool
+  private HashMap<String, Integer> stringNumber;
+  private boolean streaming;
+  private File spillFile;       // streamed string dws
+  private S4AsmWriter spill;
+  private int spilled;          // strings in spillFile
+  //-----------------------------------------
+  public S4CodeGen(S4AsmWriter outFile, S4SymTab st)
+  {
+    this.outFile = outFile;
+    this.st = st;
+    labelNumber = 0;
+    code = new int[3 * 256];
+    size = 0;
+    text = new ArrayList<String>();
+    strings = new ArrayList<String>();
+    stringNumber = new HashMap<String, Integer>();
+  }
+  //-----------------------------------------
+  // Code generator for one part of a program compiled
+  // in parallel.  It has no output file: its code is
+  // appended to the whole program's code generator.
+  // Labels start at firstLabel so that the parts use
+  // disjoint label ranges.
+  //
+  public S4CodeGen(S4SymTab st, int firstLabel)
+  {
+    this(null, st);
+    labelNumber = firstLabel;
+  }
+  //-----------------------------------------
+  // Append the code of a part built with the
+  // constructor above.
+  //
+  public void append(S4CodeGen p)
+  {
+    int base = text.size();
+    text.addAll(p.text);
+    for (int i = 0; i < p.size; i++)
+    {
+      int k = 3 * i;
+      int value = p.code[k + 1];
+      if ((p.code[k] & 7) == TEXT)
+        value += base;
+      else
+        if ((p.code[k] & 7) == STRING)
+          value = string(p.strings.get(value));
+      add(p.code[k], value, p.code[k + 2]);
+    }
+    labelNumber = Math.max(labelNumber, p.labelNumber);
+  }
+  //-----------------------------------------
+  // With streaming on, the code is written out in
+  // blocks as it is generated, so the buffer stays
+  // small (as -stream needs).  String constants are
+  // not pooled then, as the pool would grow with the
+  // number of distinct strings: each one gets its own
+  // number, and its dw goes straight to a temporary
+  // file that endCode copies to the output after the
+  // halt.
+  //
+  public void setStreaming(boolean streaming)
+  {
+    this.streaming = streaming;
+  }
+  //-----------------------------------------
+  private void add(int opAndKind, int value, int aux)
+  {
+    if (3 * size == code.length)
+      code = Arrays.copyOf(code, 2 * code.length);
+    int k = 3 * size++;
+    code[k] = opAndKind;
+    code[k + 1] = value;
+    code[k + 2] = aux;
+    if (streaming && size >= STREAM_BLOCK)
+      flush();
+  }
+  //-----------------------------------------
+  private void add(S4Op op, int kind, int value)
+  {
+    add(op.ordinal() << 3 | kind, value, 0);
+  }
+  //-----------------------------------------
+  private int addText(String s)
+  {
+    text.add(s);
+    return text.size() - 1;
+  }
+  //-----------------------------------------
+  public void emitInstruction(S4Op op)
+  {
+    add(op, NONE, 0);
+  }
+  //-----------------------------------------
+  // op with a variable as its operand
+  //
+  public void emitSymbol(S4Op op, String name)
+  {
+    add(op, SYM, st.enter(name));
+  }
+  //-----------------------------------------
+  // op with a constant as its operand.  image is the
+  // constant's source text, which is kept as text if
+  // it is not the canonical form of an int (leading
+  // zeros, or out of range).
+  //
+  public void emitConstant(S4Op op, String image)
+  {
+    int n = image.length();
+    int i = image.charAt(0) == '-' ? 1 : 0;
+    long value = 0;
+    boolean canonical = n > i && n - i <= 10 &&
+      (image.charAt(i) != '0' || n - i == 1);
+    for (int j = i; j < n && canonical; j++)
+      value = 10 * value + image.charAt(j) - '0';
+    if (i == 1)
+      value = -value;
+    if (canonical && value == (int)value &&
+        !(value == 0 && i == 1))
+      add(op, CONST, (int)value);
+    else
+      add(op, TEXT, addText(image));
+  }
+  //-----------------------------------------
+  public void emitConstant(S4Op op, int value)
+  {
+    add(op, CONST, value);
+  }
+  //-----------------------------------------
+  // op with label number label as its operand
+  //
+  public void emitLabelRef(S4Op op, int label)
+  {
+    add(op, LABEL, label);
+  }
+  //-----------------------------------------
+  public void emitChar(S4Op op, char c)
+  {
+    add(op, CHAR, c);
+  }
+  //-----------------------------------------
+  // op with the string constant value (as written, in
+  // quotes) as its operand.
+  //
+  public void emitString(S4Op op, String value)
+  {
+    add(op, STRING, string(value));
+  }
+  //-----------------------------------------
+  // The number of string constant value in the pool,
+  // which it is added to if it is not there yet.
+  //
+  private int string(String value)
+  {
+    if (streaming)
+      return spill(value);
+    Integer n = stringNumber.get(value);
+    if (n == null)
+    {
+      n = strings.size();
+      strings.add(value);
+      stringNumber.put(value, n);
+    }
+    return n;
+  }
+  //-----------------------------------------
+  // Write the dw of string constant value to the spill
+  // file, which is created the first time, and return
+  // its number.
+  //
+  private int spill(String value)
+  {
+    if (spill == null)
+      try
+      {
+        spillFile = File.createTempFile("s4-", ".a");
+        spillFile.deleteOnExit();
+        spill = new S4AsmWriter(spillFile.getPath());
+      }
+      catch (IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    stringDw(spill, spilled, value);
+    spill.println();
+    return spilled++;
+  }
+  //-----------------------------------------
+  // Write the dw of string constant number n, whose
+  // text is value.
+  //
+  private static void stringDw(S4AsmWriter out, int n,
+      String value)
+  {
+    out.print('^');
+    out.print(stringPrefix);
+    out.print(n);
+    out.print(':');
+    out.padTo(9);
+    out.print(dw);
+    out.print(value);
+  }
+  //-----------------------------------------
+  public void emitLabel(int label)
+  {
+    add(S4Op.LABEL, LABEL, label);
+  }
+  //-----------------------------------------
+  public void emitComment(String comment)
+  {
+    add(S4Op.COMMENT, TEXT, addText(comment));
+  }
+  //-----------------------------------------
+  public void endCode()
+  {
+    add(S4Op.BLANK, NONE, 0);
+    emitInstruction(S4Op.HALT);
+
+    // then the data: the string pool (or the spilled
+    // string dws) and a dw for each symbol in the symbol
+    // table
+    if (spill != null)
+    {
+      flush();
+      spill.close();
+      outFile.append(spillFile.getPath());
+      spillFile.delete();
+      spill = null;
+    }
+    for (int i = 0; i < strings.size(); i++)
+      add(S4Op.DW.ordinal() << 3 | TEXT, 
+          addText(strings.get(i)), i);
+    int n = st.getSize();
+    for (int i=0; i < n; i++) 
+      add(S4Op.DW, SYM, i);
+  }
+  //-----------------------------------------
+  // Write out the buffered code and empty the buffer.
+  //
+  public void flush()
+  {
+    S4AsmWriter out = outFile;
+    for (int i = 0; i < size; i++)
+    {
+      int k = 3 * i;
+      S4Op op = ops[code[k] >>> 3];
+      int kind = code[k] & 7;
+      int value = code[k + 1];
+      switch (op)
+      {
+        case LABEL:
+          operand(kind, value);
+          out.print(':');
+          out.padTo(9);
+          out.print(' ');
+          break;
+        case DW:
+          if (kind == TEXT)
+            stringDw(out, code[k + 2], text.get(value));
+          else
+          {
+            operand(kind, value);
+            out.print(':');
+            out.padTo(9);
+            out.print(dw);
+            out.print('0');
+          }
+          break;
+        case COMMENT:
+          out.print(comment);
+          out.print(text.get(value));
+          break;
+        case BLANK:
+          break;
+        default:
+          if (kind == NONE)
+            out.print(bare[op.ordinal()]);
+          else
+          {
+            out.print(withOperand[op.ordinal()]);
+            operand(kind, value);
+          }
+      }
+      out.println();
+    }
+    size = 0;
+    text.clear();
+  }
+  //-----------------------------------------
+  // Write out an operand.
+  //
+  private void operand(int kind, int value)
+  {
+    switch (kind)
+    {
+      case SYM:
+        outFile.print(st.getSymbol(value));
+        break;
+      case CONST:
+        outFile.print(value);
+        break;
+      case LABEL:
+        outFile.print(labelPrefix);
+        outFile.print(value);
+        break;
+      case STRING:
+        outFile.print(stringPrefix);
+        outFile.print(value);
+        break;
+      case CHAR:
+        outFile.print('\'');
+        if (value == '\n')
+        {
+          outFile.print('\\');
+          outFile.print('n');
+        }
+        else
+          outFile.print((char)value);
+        outFile.print('\'');
+        break;
+      default:
+        outFile.print(text.get(value));
+    }
+  }
+  //-----------------------------------------
+  // Access to the buffered code, for the passes that
+  // rewrite it.  Instructions are numbered from 0.
+  //
+  public int size()
+  {
+    return size;
+  }
+  //-----------------------------------------
+  public S4Op getOp(int i)
+  {
+    return ops[code[3 * i] >>> 3];
+  }
+  //-----------------------------------------
+  public int getKind(int i)
+  {
+    return code[3 * i] & 7;
+  }
+  //-----------------------------------------
+  public int getOperand(int i)
+  {
+    return code[3 * i + 1];
+  }
+  //-----------------------------------------
+  public void set(int i, S4Op op, int kind, int value)
+  {
+    code[3 * i] = op.ordinal() << 3 | kind;
+    code[3 * i + 1] = value;
+    code[3 * i + 2] = 0;
+  }
+  //-----------------------------------------
+  // Copy instruction from over instruction to.
+  //
+  public void move(int from, int to)
+  {
+    System.arraycopy(code, 3 * from, code, 3 * to, 3);
+  }
+  //-----------------------------------------
+  // Drop the instructions from newSize on.
+  //
+  public void truncate(int newSize)
+  {
+    size = newSize;
+  }
+  //-----------------------------------------
+  // Make the buffer newSize instructions long.  New
+  // instructions must be set or moved into before the
+  // code is written.
+  //
+  public void grow(int newSize)
+  {
+    if (3 * newSize > code.length)
+      code = Arrays.copyOf(code,
+          Math.max(3 * newSize, 2 * code.length));
+    size = newSize;
+  }
+  //-----------------------------------------
+  // Number of labels allocated so far (and one more
+  // than the highest label number).
+  //
+  public int getLabelCount()
+  {
+    return labelNumber;
+  }
+  //-----------------------------------------
+  // Allocate a new label number.
+  //
+  public int getLabel()
   {
-    return "@L" + labelNumber++;
+    return labelNumber++;
   }
 }                        // end of S4CodeGen class
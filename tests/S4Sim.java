@@ -0,0 +1,281 @@
+// Simulator for the stack machine S4 compiles to
+import java.io.*;
+import java.util.*;
+//======================================================
+// Runs a .a file the way Dos Reis's machine would, so
+// that the tests can check what a compiled program
+// does without the assembler and interpreter.  Words
+// are 16 bits.  din reads integers from standard input
+// and the program's output goes to standard output.  A
+// run that goes wrong (division by zero, stack
+// underflow, a halt with values left on the stack, too
+// many steps) ends with a line starting "***" and exit
+// status 1.
+//
+//    java S4Sim prog.a < input
+//
+class S4Sim
+{
+  private static final int STEPS = 10000000;
+
+  private ArrayList<String> ops;        // the code
+  private ArrayList<String> operands;
+  private ArrayList<Integer> lines;     // in the .a file
+  private HashMap<String, Integer> labels;
+  private HashMap<String, Integer> address;
+  private ArrayList<Integer> memory;
+  private HashMap<Integer, String> strings;
+  private int[] stack;
+  private int top;
+  private StringBuilder out;
+  //-----------------------------------------
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 1)
+    {
+      System.err.println("usage: java S4Sim prog.a < input");
+      System.exit(2);
+    }
+    S4Sim sim = new S4Sim();
+    sim.load(args[0]);
+    String error = sim.run(new Scanner(System.in));
+    System.out.print(sim.out);
+    if (error != null)
+    {
+      System.out.println("*** " + error);
+      System.exit(1);
+    }
+  }
+  //-----------------------------------------
+  public S4Sim()
+  {
+    ops = new ArrayList<String>();
+    operands = new ArrayList<String>();
+    lines = new ArrayList<Integer>();
+    labels = new HashMap<String, Integer>();
+    address = new HashMap<String, Integer>();
+    memory = new ArrayList<Integer>();
+    strings = new HashMap<Integer, String>();
+    stack = new int[1024];
+    out = new StringBuilder();
+  }
+  //-----------------------------------------
+  // Read the code, the labels, and the dws of a .a
+  // file.  A line that starts in column 1 has a label:
+  // "^name:" or "name:" and then a dw, an instruction,
+  // or nothing.
+  //
+  public void load(String fileName) throws IOException
+  {
+    BufferedReader in =
+      new BufferedReader(new FileReader(fileName));
+    String line;
+    int number = 0;
+    while ((line = in.readLine()) != null)
+    {
+      number++;
+      String rest = line.trim();
+      if (rest.length() == 0 || rest.startsWith(";"))
+        continue;
+      if (!Character.isWhitespace(line.charAt(0)))
+      {
+        int colon = line.indexOf(':');
+        String label = line.substring(0, colon);
+        if (label.startsWith("^"))
+          label = label.substring(1);
+        rest = line.substring(colon + 1).trim();
+        if (rest.startsWith("dw"))
+        {
+          String value = rest.substring(2).trim();
+          int a = addressOf(label);
+          if (value.startsWith("\""))
+            strings.put(a, unescape(
+                  value.substring(1, value.length() - 1)));
+          else
+            memory.set(a, Integer.parseInt(value));
+          continue;
+        }
+        labels.put(label, ops.size());
+        if (rest.length() == 0)
+          continue;
+      }
+      int space = rest.indexOf(' ');
+      ops.add(space < 0 ? rest : rest.substring(0, space));
+      operands.add(space < 0 ? null :
+          rest.substring(space).trim());
+      lines.add(number);
+    }
+    in.close();
+  }
+  //-----------------------------------------
+  // Run the loaded code.  Returns null if it halts
+  // normally, or what went wrong.
+  //
+  public String run(Scanner input)
+  {
+    int pc = 0;
+    for (int steps = 0; steps < STEPS; steps++)
+    {
+      if (pc >= ops.size())
+        return "ran off the end of the code";
+      String op = ops.get(pc);
+      String operand = operands.get(pc);
+      int line = lines.get(pc);
+      pc++;
+      int need = op.equals("stav") || op.equals("add") ||
+        op.equals("sub") || op.equals("mult") ||
+        op.equals("div") ? 2 : op.equals("rot") ? 3 :
+        op.equals("dupe") || op.equals("neg") ||
+        op.equals("dout") || op.equals("aout") ||
+        op.equals("sout") || op.equals("jz") ||
+        op.equals("jnz") ? 1 : 0;
+      if (top < need)
+        return "stack underflow at line " + line + " (" +
+          op + ")";
+      if (top + 1 >= stack.length)
+        stack = Arrays.copyOf(stack, 2 * stack.length);
+
+      if (op.equals("p"))
+        push(memory.get(addressOf(operand)));
+      else
+        if (op.equals("pc"))
+          push(operand.startsWith("'") ?
+              unescape(operand.substring(1,
+                  operand.length() - 1)).charAt(0) :
+              addressOf(operand));
+        else
+          if (op.equals("pwc"))
+            push(wrap(Integer.parseInt(operand)));
+          else
+            if (op.equals("stav"))
+            {
+              int value = pop();
+              memory.set(pop(), value);
+            }
+            else
+              if (op.equals("dupe"))
+                push(stack[top - 1]);
+              else
+                if (op.equals("rot"))
+                {
+                  // x b c becomes c x b (c on top)
+                  int c = pop();
+                  int b = pop();
+                  int x = pop();
+                  push(c);
+                  push(x);
+                  push(b);
+                }
+                else
+                  if (op.equals("neg"))
+                    push(wrap(-pop()));
+                  else
+                    if (op.equals("add") || op.equals("sub") ||
+                        op.equals("mult") || op.equals("div"))
+                    {
+                      int b = pop();
+                      int a = pop();
+                      if (op.equals("div") && b == 0)
+                        return "division by zero";
+                      push(wrap(op.equals("add") ? a + b :
+                            op.equals("sub") ? a - b :
+                            op.equals("mult") ? a * b : a / b));
+                    }
+                    else
+                      if (op.equals("dout"))
+                        out.append(pop());
+                      else
+                        if (op.equals("aout"))
+                          out.append((char)pop());
+                        else
+                          if (op.equals("sout"))
+                            out.append(strings.get(pop()));
+                          else
+                            if (op.equals("din"))
+                            {
+                              if (!input.hasNextInt())
+                                return "no input for din";
+                              push(wrap(input.nextInt()));
+                            }
+                            else
+                              if (op.equals("ja"))
+                                pc = target(operand);
+                              else
+                                if (op.equals("jz"))
+                                {
+                                  if (pop() == 0)
+                                    pc = target(operand);
+                                }
+                                else
+                                  if (op.equals("jnz"))
+                                  {
+                                    if (pop() != 0)
+                                      pc = target(operand);
+                                  }
+                                  else
+                                    if (op.equals("halt"))
+                                      return top == 0 ? null :
+                                        "halt with " + top +
+                                        " values on the stack";
+                                    else
+                                      return "unknown instruction " +
+                                        op + " at line " + line;
+    }
+    return "more than " + STEPS + " steps";
+  }
+  //-----------------------------------------
+  private void push(int value)
+  {
+    stack[top++] = value;
+  }
+  //-----------------------------------------
+  private int pop()
+  {
+    return stack[--top];
+  }
+  //-----------------------------------------
+  private int target(String label)
+  {
+    Integer pc = labels.get(label);
+    if (pc == null)
+      throw new RuntimeException("No label " + label);
+    return pc;
+  }
+  //-----------------------------------------
+  // The address of a variable or string, given one the
+  // first time it is seen.
+  //
+  private int addressOf(String name)
+  {
+    Integer a = address.get(name);
+    if (a == null)
+    {
+      a = memory.size();
+      address.put(name, a);
+      memory.add(0);
+    }
+    return a;
+  }
+  //-----------------------------------------
+  private static int wrap(int value)
+  {
+    return (short)value;
+  }
+  //-----------------------------------------
+  private static String unescape(String s)
+  {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length())
+      {
+        c = s.charAt(++i);
+        c = c == 'n' ? '\n' : c == 't' ? '\t' :
+          c == 'r' ? '\r' : c;
+      }
+      b.append(c);
+    }
+    return b.toString();
+  }
+}                                  // end of S4Sim class
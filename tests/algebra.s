@@ -0,0 +1,15 @@
+readint(x);
+readint(y);
+a = x * 1; println(a);
+b = 1 * x + 0; println(b);
+c = 0 * y; println(c);
+d = x - x; println(d);
+e = x * 2; println(e);
+f = 2 * (x + y); println(f);
+g = x * -1; println(g);
+h = x + 1 + 2 - 5; println(h);
+i = 0 - y; println(i);
+k = 3 * x * 4; println(k);
+l = x - -y; println(l);
+m = x / 1; println(m);
+n = (x / y) - (x / y); println(n);
@@ -0,0 +1,16 @@
+// basic arithmetic
+x = 3 * (4 + 5);
+y = x / 2 + 7;
+println(x);
+println(y);
+z = -x;
+w = - -x;
+v = -(x + y) * 2;
+u = +-+x;
+print("Result: ");
+println(z + w);
+println("Result: ");
+println();
+a = b = c = 5 + x;
+println(a * b * c - 1);
+println(a - b);
@@ -0,0 +1,9 @@
+// constant conditions
+readint(a);
+if (1) println("one"); else println("never");
+if (0) println("never"); else println("zero");
+if (2 - 2) println("never");
+while (0) println("never");
+do { a = a - 1; } while (0);
+println(a);
+if (a) println("a"); else { println("not a"); }
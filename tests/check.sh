@@ -0,0 +1,109 @@
+#!/bin/sh
+# Checks the compiler against the programs in tests.
+# Each NAME.s is compiled, and
+#
+#  - the .a file must be NAME.golden, byte for byte;
+#  - run on S4Sim with NAME.in (if any) as input, it
+#    must print NAME.out, which is what the original
+#    hand-written S4 (the first commit) compiles it to
+#    print;
+#  - compiled with -parallel, the .a file must be the
+#    one compiled without;
+#  - compiled with each of -stream -O0 -O1 -peval,
+#    it must print NAME.out too;
+#  - -syntax-only must accept it.
+#
+# Each errors/NAME.s must be rejected by -syntax-only
+# with the messages in errors/NAME.err.
+#
+# With -update, the goldens are rewritten from the
+# current compiler instead, for a change that is meant
+# to change them; review their diff.
+#
+#    sh tests/check.sh [-update]
+
+cd "$(dirname "$0")/.." || exit 2
+tests=$(pwd)/tests
+work=$(mktemp -d) || exit 2
+trap 'rm -rf "$work"' EXIT
+javac -d "$work" S4.java Token.java tests/S4Sim.java || exit 2
+cd "$work" || exit 2
+update=no
+[ "$1" = -update ] && update=yes
+
+failed=0
+fail()
+{
+  echo "FAIL $*"
+  failed=1
+}
+
+# golden FILE GOLDEN: FILE must be GOLDEN, or becomes it
+# with -update
+golden()
+{
+  if [ $update = yes ]
+  then
+    cp "$1" "$2"
+  else
+    cmp -s "$1" "$2" || fail "$1 differs from $2"
+  fi
+}
+
+# run NAME [OPTION...]: compile NAME.s with the options
+# and run it, leaving NAME.a and what it prints in
+# NAME.got.  S4Sim's exit status is not checked: a run
+# that fails (division by zero, say) says so in what it
+# prints.
+run()
+{
+  name=$1
+  shift
+  rm -f $name.a
+  input=/dev/null
+  [ -f "$tests/$name.in" ] && input="$tests/$name.in"
+  if java -cp . S4 "$@" $name >/dev/null 2>&1
+  then
+    java -cp . S4Sim $name.a <"$input" >$name.got 2>&1
+  else
+    echo "*** compile failed" >$name.got
+  fi
+}
+
+for src in "$tests"/*.s
+do
+  name=$(basename "$src" .s)
+  cp "$src" .
+  run $name
+  golden $name.a "$tests/$name.golden"
+  cmp -s $name.got "$tests/$name.out" || fail "$name prints"
+
+  mv $name.a $name.sequential
+  run $name -parallel
+  cmp -s $name.got "$tests/$name.out" ||
+    fail "-parallel $name prints"
+  cmp -s $name.a $name.sequential ||
+    fail "-parallel $name.a differs from sequential"
+
+  for mode in -stream -O0 -O1 -peval
+  do
+    run $name $mode
+    cmp -s $name.got "$tests/$name.out" ||
+      fail "$mode $name prints"
+  done
+
+  java -cp . S4 -syntax-only $name >/dev/null 2>&1 ||
+    fail "-syntax-only rejects $name"
+done
+
+for src in "$tests"/errors/*.s
+do
+  name=$(basename "$src" .s)
+  cp "$src" .
+  java -cp . S4 -syntax-only $name >$name.err 2>&1 &&
+    fail "-syntax-only accepts errors/$name"
+  golden $name.err "$tests/errors/$name.err"
+done
+
+[ $failed = 0 ] && echo "all tests passed"
+exit $failed
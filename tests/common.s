@@ -0,0 +1,20 @@
+// common subexpressions
+readint(a);
+readint(b);
+x = (a + b) * (a + b);
+y = (a * b - 3) * 4;
+z = (a * b - 3) + a * b - 3;
+println((a * b - 3) / 2);
+println(x + y + z);
+a = a * b - 3;
+println(a * b - 3);
+println(a * b - 3);
+println(a * b - 3);
+w = (x + y * 2) * (x + y * 2) + (x + y * 2);
+println(w);
+while (a)
+{
+  b = (a - 1) * (a - 1) + (a - 1) * 3 + (a - 1);
+  println(b);
+  a = a - 1;
+}
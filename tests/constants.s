@@ -0,0 +1,35 @@
+// constants through variables
+n = 100;
+k = n / 10;
+readint(a);
+if (k - 10) println("never"); else println("k is 10");
+i = 0;
+s = 0;
+while (n - i)
+{
+  s = s + k;
+  i = i + 1;
+}
+println(s);
+f = 1;
+m = 3;
+while (m)
+{
+  if (f) t = 7; else t = 8;
+  println(t * m);
+  m = m - 1;
+}
+z = 0;
+do
+{
+  z = z + 0;
+  println(z + k);
+} while (z);
+if (a) q = 1; else q = 1;
+println(q + k);
+u = 5;
+while (u - 5) { println(u); u = 3; }
+println(u);
+w = 2;
+do w = w * 2; while (0);
+println(w);
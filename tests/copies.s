@@ -0,0 +1,14 @@
+// copies: the same values under different names
+readint(b);
+readint(c);
+a = b;
+x = a + c;
+y = b + c;
+println(x * y);
+d = c + a;
+z = -(c + b) * 2;
+println(d - z);
+b = 1;
+w = a + c;
+v = b + c;
+println(w - v);
@@ -0,0 +1,4 @@
+i = 0;
+while (30000 - i)
+  i = i + 1;
+println(i);
@@ -0,0 +1,7 @@
+readint(n);
+i = 0;
+while (3 - i)
+{
+  println(i * 2 + n);
+  i = i + 1;
+}
@@ -0,0 +1,7 @@
+readint(a);
+readint(b);
+do
+{
+  a = a - 1;
+  println(a + b * b);
+} while (a);
@@ -0,0 +1,4 @@
+x = (3 + ;
+y = 4;
+while (y { y = y - 1; }
+println(x y);
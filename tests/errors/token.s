@@ -0,0 +1,2 @@
+x = 3 $ 4;
+println(x);
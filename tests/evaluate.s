@@ -0,0 +1,4 @@
+i = 300;
+while (i) { s = s + i; i = i - 1; }
+println(s);
+print("q\"x\\");
@@ -0,0 +1,15 @@
+readint(a);
+readint(b);
+y = (a+b)*(a+b) + (a+b);
+println(y);
+t = a; t = b;
+println(t);
+x = a * 1 + 0 - 0 * b;
+println(x / 1);
+println(x - x);
+println(x * 2);
+println("tab\there \"quoted\" back\\slash");
+;;
+{ ; }
+z = 7 / 2 + 32767 + 1 - -7 / 2;
+println(z);
@@ -0,0 +1,23 @@
+x = 3 * (4 + 5);
+println(x);
+a = 2;
+y = 1 + 2 + a;
+println(y);
+z = a + 1 + 2;
+println(z);
+w = 32767 + 1;
+println(w);
+v = 300 * 300;
+println(v);
+u = -(7 - 10) / 2;
+println(u);
+t = -7 / 2;
+println(t);
+s = 5 / (3 - 3);
+println(s);
+r = -32768 / -1;
+println(r);
+q = 007 + 70000;
+println(q);
+p = 3 + a * (2 * 4) - -(6);
+println(p);
@@ -0,0 +1,18 @@
+// stored values used again
+readint(x);
+x = x + 1;
+println(x);
+readint(y);
+y = y * 3;
+z = 5;
+print("y: ");
+println(y);
+i = 4;
+s = 0;
+while (i)
+{
+  s = s + i * x;
+  println(s);
+  i = i - 1;
+}
+println(z);
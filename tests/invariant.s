@@ -0,0 +1,25 @@
+// loop invariants
+readint(a);
+readint(b);
+i = 5;
+s = 0;
+while (i)
+{
+  s = s + (a * b + 3) * i;
+  j = 3;
+  while (j)
+  {
+    s = s + -a + i * (b - 1);
+    j = j - 1;
+  }
+  print(s);
+  println(a / b);
+  i = i - 1;
+}
+do
+{
+  a = a - 1;
+  println(a + b * b);
+} while (a * (b - 4) + a);
+n = 0;
+while (n) println(a * b);
@@ -0,0 +1,14 @@
+readint(x);
+readint(y);
+i = 0;
+while (i - 5) {
+  if (x) {
+    if (y) println("xy"); else println("x");
+  } else {
+    while (y) { y = y - 1; println(y); }
+  }
+  i = i + 1;
+}
+do { x = x - 1; if (x) ; else ; } while (x);
+if (x) { } else { }
+println(i);
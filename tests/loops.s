@@ -0,0 +1,27 @@
+n = 10;
+i = 0;
+s = 0;
+while (n - i)
+{
+  s = s + i * i;
+  i = i + 1;
+}
+println(s);
+do
+{
+  i = i - 1;
+  print(i);
+  print(" ");
+} while (i);
+println();
+if (s - 285) println("bad"); else println("good");
+if (0) println("never");
+if (1) { println("always"); } else { println("no"); }
+while (0) println("dead");
+k = 3;
+while (k) { if (k - 2) print("odd "); else print("two "); k = k - 1; }
+println();
+// nested
+i = 0;
+while (3 - i) { j = 0; while (2 - j) { print(i * 10 + j); print(","); j = j + 1; } i = i + 1; }
+println();
@@ -0,0 +1,10 @@
+a = 5;
+b = -(-a);
+c = -(-(-(-a)));
+d = a + 0 - 0;
+e = a * 1 / 1;
+f = a + -(b);
+g = a - -(b);
+h = -(7);
+i = a + (-(3));
+println(b); println(c); println(d); println(e); println(f); println(g); println(h); println(i);
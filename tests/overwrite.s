@@ -0,0 +1,15 @@
+// stores that become dead in the code
+readint(a);
+b = a;
+c = 7;
+println(b + c);
+c = a * 2;
+println(c);
+d = 1;
+while (a)
+{
+  d = d + a;
+  a = a - 1;
+}
+d = 0;
+println(a);
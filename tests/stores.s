@@ -0,0 +1,27 @@
+// dead stores
+t = 1;
+readint(a);
+t = a;
+u = a + 1;
+t = 2 * a;
+x = y = z = a + 3;
+println(y);
+q = a / 0;
+i = 3;
+s = 0;
+while (i)
+{
+  d = i * 7;
+  s = s + i;
+  d = s;
+  i = i - 1;
+}
+println(s);
+if (a) k = 5; else k = 6;
+k = 9;
+do
+{
+  m = s;
+  s = s - 1;
+} while (s);
+m = 4;
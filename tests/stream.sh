@@ -0,0 +1,63 @@
+#!/bin/sh
+# Checks that -stream compiles in bounded memory: it
+# generates an S4 program of SIZE megabytes (default
+# 2048) and compiles it with -stream in a 64 MB heap.
+# The program repeats one chunk of statements, with
+# nested loops, ifs, and strings, over a handful of
+# variables, so its nesting depth, longest token, and
+# symbol count stay the same however big it is.  Each
+# copy's strings carry the copy's number, so the
+# number of distinct strings grows with SIZE.  The
+# check fails if the compiler fails (as it would with
+# an OutOfMemoryError) or if the .a file does not end
+# with the halt and the data, with a string dw for each
+# string the code refers to.
+#
+#    sh tests/stream.sh [SIZE]
+#
+# The source and the .a file go in $TMPDIR (or /tmp),
+# which needs room for about 4 times SIZE.
+
+size=${1:-2048}
+cd "$(dirname "$0")/.." || exit 2
+work=$(mktemp -d) || exit 2
+trap 'rm -rf "$work"' EXIT
+javac -d "$work" S4.java Token.java || exit 2
+
+awk -v size="$size" 'BEGIN {
+  chunk = \
+    "a = a + 1;\n" \
+    "b = (a * 3 - b) / 2;\n" \
+    "while (c - 3)\n" \
+    "{\n" \
+    "  c = c + 1;\n" \
+    "  do\n" \
+    "  {\n" \
+    "    d = d - 1;\n" \
+    "    if (d) e = e + c; else { e = -e; print(\"e%d is \"); println(e); }\n" \
+    "  } while (d);\n" \
+    "  d = 2;\n" \
+    "}\n" \
+    "c = 0;\n" \
+    "print(\"a%d = \");\n" \
+    "println(a);\n"
+  n = int(size * 1048576 / length(chunk)) + 1
+  for (i = 0; i < n; i++)
+    printf chunk, i, i
+}' >"$work/big.s" || exit 2
+
+echo "compiling $(du -m "$work/big.s" | cut -f1) MB with -Xmx64m -stream"
+if ! java -Xmx64m -cp "$work" S4 -stream "$work/big" >/dev/null
+then
+  echo "FAIL: compile failed"
+  exit 1
+fi
+if ! awk '/^ *halt$/ { halt = 1 }
+    /^ *pc *@S/ { refs++ }
+    /^\^@S/ && halt { dws++ }
+    END { exit !(halt && refs > 0 && dws == refs) }' "$work/big.a"
+then
+  echo "FAIL: the .a file does not end with the halt and the strings"
+  exit 1
+fi
+echo "passed"
@@ -0,0 +1,12 @@
+// the same strings many times
+i = 3;
+while (i)
+{
+  print("i = ");
+  print(i);
+  println(" and counting");
+  i = i - 1;
+}
+print("i = ");
+println(" and counting");
+println("done\t\"quoted\"");
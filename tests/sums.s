@@ -0,0 +1,8 @@
+i = 0; s = 0;
+while (1000 - i) { s = s + i; i = i + 1; }
+println(s);
+c = 0;
+do { c = c + 2; } while (100 - c);
+println(c);
+m = 5; q = m * 4 + 2;
+if (q - 22) println("x"); else println(q);
@@ -0,0 +1,30 @@
+// counted loops
+readint(a);
+i = 0;
+s = 0;
+while (5 - i)
+{
+  s = s + a * i;
+  i = i + 1;
+}
+println(s);
+n = 50;
+j = 0;
+t = 0;
+while (n - j)
+{
+  t = t + j * a;
+  print(j);
+  print(" ");
+  j = j + 1;
+}
+println(t);
+k = 10;
+do
+{
+  println(k * a);
+  k = k - 3;
+} while (k + 2);
+m = 0;
+while (m - 8) m = m + 2;
+println(m);
@@ -0,0 +1,9 @@
+i = 0;
+a = b = c = d = e = f = g = h = j = k = m = 0;
+while (12 - i)
+{
+  m = k; k = j; j = h; h = g; g = f; f = e;
+  e = d; d = c; c = b; b = a; a = i;
+  i = i + 1;
+}
+print(a); print(" "); print(f); print(" "); println(m);